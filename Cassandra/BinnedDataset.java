@@ -0,0 +1,94 @@
+import java.util.Arrays;
+
+/**
+ * A data set whose features are quantized into at most 256 quantile bins and
+ * stored as one byte code per value. Bin b of a feature holds the values in
+ * [cuts[b - 1], cuts[b]), so a split between bins b - 1 and b is the
+ * threshold test value &lt; cuts[b - 1].
+ */
+public class BinnedDataset {
+  public static final int MAX_BINS = 256;
+
+  public final Dataset dataset;
+  public final int maxBins;
+  // Bin codes of each feature, read as unsigned bytes
+  public final byte[][] codes;
+  // Sorted distinct cut values of each feature
+  public final double[][] cuts;
+
+  /**
+   * Quantize every feature of a data set
+   * @param dataset data set to quantize
+   * @param maxBins maximum number of bins per feature, at most 256
+   */
+  public BinnedDataset(Dataset dataset, int maxBins) {
+    if (maxBins < 2 || maxBins > MAX_BINS)
+      throw new IllegalArgumentException("maxBins must be in [2, 256]");
+    this.dataset = dataset;
+    this.maxBins = maxBins;
+    this.codes = new byte[dataset.featureCount][];
+    this.cuts = new double[dataset.featureCount][];
+    for (int feature = 0; feature < dataset.featureCount; ++feature) {
+      double[] column = dataset.columns[feature];
+      cuts[feature] = findCuts(column, maxBins);
+      byte[] featureCodes = new byte[dataset.rowCount];
+      for (int row = 0; row < dataset.rowCount; ++row)
+        featureCodes[row] = (byte) bin(cuts[feature], column[row]);
+      codes[feature] = featureCodes;
+    }
+  }
+
+  /**
+   * Choose cut values at the quantiles of a column. Columns with few distinct
+   * values get one bin per value, so no split is lost.
+   */
+  static double[] findCuts(double[] column, int maxBins) {
+    double[] sorted = column.clone();
+    Arrays.sort(sorted);
+
+    int distinctCount = 0;
+    for (int i = 0; i < sorted.length; ++i)
+      if (i == 0 || sorted[i] != sorted[i - 1])
+        distinctCount++;
+
+    double[] cuts = new double[Math.max(0, Math.min(distinctCount, maxBins) - 1)];
+    int cutCount = 0;
+    if (distinctCount <= maxBins) {
+      for (int i = 1; i < sorted.length; ++i)
+        if (sorted[i] != sorted[i - 1])
+          cuts[cutCount++] = sorted[i];
+    } else {
+      for (int bin = 1; bin < maxBins; ++bin) {
+        double cut = sorted[(int) ((long) bin * sorted.length / maxBins)];
+        // Skip quantiles that fall on the minimum or repeat the last cut
+        if (cut > sorted[0] && (cutCount == 0 || cut > cuts[cutCount - 1]))
+          cuts[cutCount++] = cut;
+      }
+    }
+    return Arrays.copyOf(cuts, cutCount);
+  }
+
+  /**
+   * @return the bin holding a value, that is the number of cuts not above it
+   */
+  static int bin(double[] cuts, double value) {
+    int low = 0;
+    int high = cuts.length;
+    while (low < high) {
+      int middle = (low + high) >>> 1;
+      if (cuts[middle] <= value)
+        low = middle + 1;
+      else
+        high = middle;
+    }
+    return low;
+  }
+
+  public int binCount(int feature) {
+    return cuts[feature].length + 1;
+  }
+
+  public int code(int row, int feature) {
+    return codes[feature][row] & 0xff;
+  }
+}
@@ -0,0 +1,211 @@
+import java.io.Serializable;
+import java.util.*;
+
+/**
+ * A compact form of a forest. Thresholds are replaced by 16-bit codes into
+ * a sorted codebook per feature, identical subtrees are stored once for the
+ * whole forest, and rows are binned against the codebooks once, so that
+ * every split is a comparison of small integers. Codebooks hold every
+ * distinct threshold up to MAX_CODES per feature, in which case scoring is
+ * exact; beyond that thresholds are moved to the nearest of MAX_CODES
+ * evenly spaced ones.
+ */
+public class CompressedForest implements Predictor, Serializable {
+  // Largest codebook, so that the code of a value fits in 16 bits
+  public static final int MAX_CODES = (1 << 16) - 1;
+
+  // Sorted thresholds of each feature
+  public final double[][] codebooks;
+  // Feature and threshold code of each split. A row goes left when the
+  // code of its value is not above the threshold code.
+  public final char[] feature;
+  public final char[] threshold;
+  // Children of each split: the index of a split, or ~label for a leaf
+  public final int[] left;
+  public final int[] right;
+  // Root of each tree, encoded as a child
+  public final int[] roots;
+  // Codes of the row being scored in each thread
+  private transient ThreadLocal<char[]> codes;
+
+  /**
+   * Key of a split, used to find identical subtrees
+   */
+  private static final class SplitKey {
+    final int feature;
+    final int threshold;
+    final int left;
+    final int right;
+
+    SplitKey(int feature, int threshold, int left, int right) {
+      this.feature = feature;
+      this.threshold = threshold;
+      this.left = left;
+      this.right = right;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof SplitKey))
+        return false;
+      SplitKey key = (SplitKey) o;
+      return feature == key.feature && threshold == key.threshold
+          && left == key.left && right == key.right;
+    }
+
+    @Override
+    public int hashCode() {
+      return ((feature * 31 + threshold) * 31 + left) * 31 + right;
+    }
+  }
+
+  /**
+   * Compress the trees of a forest
+   * @param forest flattened trees of the forest
+   */
+  public CompressedForest(FlatForest forest) {
+    int featureCount = 0;
+    for (int f : forest.feature)
+      featureCount = Math.max(featureCount, f + 1);
+    if (featureCount > MAX_CODES)
+      throw new IllegalArgumentException("Too many features to compress");
+
+    // Collect the distinct thresholds of each feature
+    List<Set<Double>> values = new ArrayList<>();
+    for (int f = 0; f < featureCount; ++f)
+      values.add(new TreeSet<>());
+    for (int node = 0; node < forest.feature.length; ++node)
+      if (forest.feature[node] >= 0)
+        values.get(forest.feature[node]).add(forest.threshold[node]);
+    codebooks = new double[featureCount][];
+    for (int f = 0; f < featureCount; ++f) {
+      double[] sorted = new double[values.get(f).size()];
+      int i = 0;
+      for (double value : values.get(f))
+        sorted[i++] = value;
+      if (sorted.length > MAX_CODES) {
+        double[] kept = new double[MAX_CODES];
+        for (int k = 0; k < MAX_CODES; ++k)
+          kept[k] = sorted[(int) ((long) k * (sorted.length - 1)
+              / (MAX_CODES - 1))];
+        sorted = kept;
+      }
+      codebooks[f] = sorted;
+    }
+
+    Map<SplitKey, Integer> splits = new HashMap<>();
+    List<SplitKey> order = new ArrayList<>();
+    roots = new int[forest.treeCount()];
+    for (int tree = 0; tree < roots.length; ++tree)
+      roots[tree] = intern(forest, forest.roots[tree], splits, order);
+    feature = new char[order.size()];
+    threshold = new char[order.size()];
+    left = new int[order.size()];
+    right = new int[order.size()];
+    for (int i = 0; i < order.size(); ++i) {
+      SplitKey key = order.get(i);
+      feature[i] = (char) key.feature;
+      threshold[i] = (char) key.threshold;
+      left[i] = key.left;
+      right[i] = key.right;
+    }
+  }
+
+  /**
+   * Store the subtree under a node, reusing an identical subtree stored
+   * before. A split whose children are identical is replaced by its child.
+   * @return the subtree encoded as a child
+   */
+  private int intern(FlatForest forest, int node, Map<SplitKey, Integer> splits,
+                     List<SplitKey> order) {
+    if (forest.feature[node] < 0)
+      return ~forest.value[node];
+    int leftChild = intern(forest, forest.left[node], splits, order);
+    int rightChild = intern(forest, forest.left[node] + 1, splits, order);
+    if (leftChild == rightChild)
+      return leftChild;
+    int f = forest.feature[node];
+    SplitKey key = new SplitKey(f, thresholdCode(f, forest.threshold[node]),
+        leftChild, rightChild);
+    Integer index = splits.get(key);
+    if (index == null) {
+      index = order.size();
+      splits.put(key, index);
+      order.add(key);
+    }
+    return index;
+  }
+
+  /**
+   * @return code of the threshold nearest to a value in the codebook of a
+   * feature
+   */
+  private int thresholdCode(int f, double value) {
+    double[] codebook = codebooks[f];
+    int code = Arrays.binarySearch(codebook, value);
+    if (code >= 0)
+      return code;
+    int above = -code - 1;
+    if (above == codebook.length
+        || (above > 0 && value - codebook[above - 1] < codebook[above] - value))
+      return above - 1;
+    return above;
+  }
+
+  /**
+   * Bin the features of a row against the codebooks
+   * @param x feature values of a row
+   * @param codes receives the code of each feature: the number of thresholds
+   *              of the feature not above its value, or all of them for NaN,
+   *              which fails every split as in TreeNode
+   */
+  public void bin(double[] x, char[] codes) {
+    for (int f = 0; f < codebooks.length; ++f) {
+      double[] codebook = codebooks[f];
+      if (Double.isNaN(x[f])) {
+        codes[f] = (char) codebook.length;
+        continue;
+      }
+      int low = 0;
+      int high = codebook.length;
+      while (low < high) {
+        int middle = (low + high) >>> 1;
+        if (codebook[middle] <= x[f])
+          low = middle + 1;
+        else
+          high = middle;
+      }
+      codes[f] = (char) low;
+    }
+  }
+
+  /**
+   * @param codes codes of a row, as written by bin
+   * @return number of trees voting for label 1
+   */
+  public int votes(char[] codes) {
+    int votes = 0;
+    for (int root : roots) {
+      int node = root;
+      while (node >= 0)
+        node = codes[feature[node]] <= threshold[node]
+            ? left[node] : right[node];
+      votes += ~node;
+    }
+    return votes;
+  }
+
+  @Override
+  public int treeCount() {
+    return roots.length;
+  }
+
+  @Override
+  public int votes(double[] x) {
+    if (codes == null)
+      codes = ThreadLocal.withInitial(() -> new char[codebooks.length]);
+    char[] rowCodes = codes.get();
+    bin(x, rowCodes);
+    return votes(rowCodes);
+  }
+}
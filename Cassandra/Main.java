@@ -25,44 +25,51 @@ public class Main {
     return dataMatrix;
   }
 
-  public static void validate(RandomForest randomForest)
-      throws IOException {
+  public static void validate(Predictor predictor) {
     List<DataRow> dataMatrix = readDatabase("testing");
+    Dataset dataset = Dataset.fromRows(dataMatrix);
     int correctCount = 0;
-    for (DataRow row: dataMatrix) {
-      if (randomForest.test(row.features) == row.label)
+    for (int row = 0; row < dataset.rowCount; ++row) {
+      if (predictor.predict(dataset.row(row)) == dataset.label(row))
         correctCount++;
     }
     System.out.printf("Correctness: %f%%\n",
         (double)correctCount / dataMatrix.size() * 100);
   }
 
+  /**
+   * Store the trees of a forest in the model file format of MappedForest,
+   * deflated, since a blob is read into the heap rather than mapped
+   * @param randomForest trained forest
+   * @param rfKey key of the forest in the random_forest table
+   */
   public static void serialize(RandomForest randomForest, String rfKey) {
     try {
       String cqlStatement =
           "INSERT INTO random_forest (rf_key, forest) VALUES (?, ?)";
       BoundStatement boundStatement = session.prepare(cqlStatement).bind();
-      ByteBuffer blob = ByteBuffer.wrap(RandomForest.serialize(randomForest));
+      ByteBuffer blob = ByteBuffer.wrap(
+          MappedForest.toBytes(randomForest.flatten(), true));
       session.execute(boundStatement.bind(rfKey, blob));
     } catch (IOException e) {
       e.printStackTrace();
     }
   }
 
-  public static RandomForest deserialize(String rfKey)
-      throws IOException, ClassNotFoundException {
+  /**
+   * Load a stored forest for scoring, such as to swap into a
+   * PredictionServer
+   * @param rfKey key of the forest in the random_forest table
+   * @return predictor of the forest
+   */
+  public static MappedForest deserialize(String rfKey) throws IOException {
     String cqlStatement =
         "SELECT forest FROM random_forest WHERE rf_key = '%s'";
     ResultSet resultSet = session.execute(String.format(cqlStatement, rfKey));
-    ByteBuffer blob = resultSet.one().getBytes("forest");
-    byte[] bytes = new byte[blob.remaining()];
-    blob.get(bytes);
-
-    return RandomForest.deserialize(bytes);
+    return MappedForest.read(resultSet.one().getBytes("forest"));
   }
 
-  public static void main (String[] args)
-      throws IOException, ClassNotFoundException {
+  public static void main (String[] args) throws IOException {
     // Read data
     String rfKey = "testRun1";
     int N = 50;
@@ -76,11 +83,17 @@ public class Main {
       RandomForest randomForest = new RandomForest(N);
       randomForest.train(dataMatrix);
 
+      // Keep the trees that do best on the rows held out from training,
+      // before the forest is stored in a form that only predicts
+      int holdoutStart = (int) Math.ceil(dataMatrix.size() * 2.0 / 3.0);
+      RandomForest reducedForest = randomForest.reduce(
+          dataMatrix.subList(holdoutStart, dataMatrix.size()), N / 5, 0);
       serialize(randomForest, rfKey);
-      randomForest = deserialize(rfKey);
+      serialize(reducedForest, rfKey + "Reduced");
 
       // Validate test data
-      validate(randomForest);
+      validate(deserialize(rfKey));
+      validate(deserialize(rfKey + "Reduced"));
     }
   }
 }
@@ -0,0 +1,251 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * A flattened forest read straight from a binary model file. The file is
+ * memory-mapped and the trees are walked in the mapped buffer, so loading
+ * a model takes no deserialization, and processes scoring with the same
+ * model share one copy of it in the page cache.
+ *
+ * The file is little-endian. A header of six ints (magic number, format
+ * version, flags, tree count, node count and feature count) is followed
+ * by the arrays of FlatForest: thresholds, features, left children, roots
+ * and leaf labels. With the DEFLATED flag the arrays are compressed, and
+ * loading inflates them into the heap instead of mapping them.
+ */
+public class MappedForest implements Predictor {
+  public static final int MAGIC = 0x52464D44;
+  public static final int VERSION = 2;
+  // Flag of files whose arrays are compressed with deflate
+  public static final int DEFLATED = 1;
+  private static final int HEADER_SIZE = 24;
+
+  private final int treeCount;
+  private final int nodeCount;
+  private final int featureCount;
+  private final DoubleBuffer threshold;
+  private final IntBuffer feature;
+  private final IntBuffer left;
+  private final IntBuffer roots;
+  private final ByteBuffer value;
+
+  /**
+   * Read a model from a buffer holding a whole model file
+   * @param buffer model file contents from its position to its limit, such
+   *               as a mapped file or a blob
+   */
+  private MappedForest(ByteBuffer buffer) throws IOException {
+    buffer = buffer.slice().order(ByteOrder.LITTLE_ENDIAN);
+    if (buffer.remaining() < HEADER_SIZE || buffer.getInt(0) != MAGIC)
+      throw new IOException("Not a forest model file");
+    int version = buffer.getInt(4);
+    if (version != VERSION)
+      throw new IOException("Unsupported model file version " + version);
+    int flags = buffer.getInt(8);
+    treeCount = buffer.getInt(12);
+    nodeCount = buffer.getInt(16);
+    featureCount = buffer.getInt(20);
+    long bodySize = 17L * nodeCount + 4L * treeCount;
+
+    buffer.position(HEADER_SIZE);
+    ByteBuffer body = buffer.slice().order(ByteOrder.LITTLE_ENDIAN);
+    if ((flags & DEFLATED) != 0) {
+      byte[] bytes = new byte[(int) bodySize];
+      try (DataInputStream in = new DataInputStream(new InflaterInputStream(
+          new ByteBufferInputStream(body)))) {
+        in.readFully(bytes);
+      }
+      body = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+    } else if (body.remaining() < bodySize) {
+      throw new IOException("Model file is truncated");
+    }
+
+    threshold = slice(body, 0, 8 * nodeCount).asDoubleBuffer();
+    feature = slice(body, 8 * nodeCount, 4 * nodeCount).asIntBuffer();
+    left = slice(body, 12 * nodeCount, 4 * nodeCount).asIntBuffer();
+    roots = slice(body, 16 * nodeCount, 4 * treeCount).asIntBuffer();
+    value = slice(body, 16 * nodeCount + 4 * treeCount, nodeCount);
+  }
+
+  private static ByteBuffer slice(ByteBuffer buffer, int offset, int length) {
+    ByteBuffer duplicate = buffer.duplicate();
+    duplicate.position(offset);
+    duplicate.limit(offset + length);
+    return duplicate.slice().order(ByteOrder.LITTLE_ENDIAN);
+  }
+
+  /**
+   * Map a model file
+   * @param filename file written by write
+   * @return forest reading its nodes from the mapped file
+   */
+  public static MappedForest open(String filename) throws IOException {
+    try (RandomAccessFile file = new RandomAccessFile(filename, "r");
+         FileChannel channel = file.getChannel()) {
+      return new MappedForest(
+          channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+    }
+  }
+
+  /**
+   * Read a model held in memory, such as a blob read from a database
+   * @param buffer contents of a model file from its position to its limit,
+   *               which are left unchanged
+   * @return forest reading its nodes from the buffer
+   */
+  public static MappedForest read(ByteBuffer buffer) throws IOException {
+    return new MappedForest(buffer);
+  }
+
+  /**
+   * Write a forest as a model file. The file is written under a temporary
+   * name and then renamed over the target, so processes that have the old
+   * file mapped keep reading it intact. The file is created with the
+   * permissions the umask gives any new file, so that scoring processes of
+   * other users can map it too.
+   * @param forest flattened trees of the forest
+   * @param filename file to write
+   * @param deflate whether to compress the arrays, which makes the file
+   *                smaller but loading it a copy rather than a mapping
+   */
+  public static void write(FlatForest forest, String filename, boolean deflate)
+      throws IOException {
+    Path target = Paths.get(filename).toAbsolutePath();
+    // A random name, so that concurrent writers of one model never share a
+    // temporary file; CREATE_NEW fails rather than reuse one
+    Path temporary = target.resolveSibling(target.getFileName() + "."
+        + Long.toHexString(ThreadLocalRandom.current().nextLong()) + ".tmp");
+    OutputStream file = Files.newOutputStream(temporary,
+        StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+    try {
+      try (OutputStream out = new BufferedOutputStream(file)) {
+        write(forest, out, deflate);
+      }
+      Files.move(temporary, target, StandardCopyOption.ATOMIC_MOVE,
+          StandardCopyOption.REPLACE_EXISTING);
+    } finally {
+      Files.deleteIfExists(temporary);
+    }
+  }
+
+  /**
+   * Write a forest in the model file format
+   * @param forest flattened trees of the forest
+   * @param out stream to write to, which is not closed
+   * @param deflate whether to compress the arrays
+   */
+  public static void write(FlatForest forest, OutputStream out, boolean deflate)
+      throws IOException {
+    int nodeCount = forest.feature.length;
+    int treeCount = forest.treeCount();
+    ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE)
+        .order(ByteOrder.LITTLE_ENDIAN);
+    header.putInt(MAGIC).putInt(VERSION).putInt(deflate ? DEFLATED : 0)
+        .putInt(treeCount).putInt(nodeCount).putInt(forest.featureCount);
+    out.write(header.array());
+
+    ByteBuffer body = ByteBuffer.allocate(17 * nodeCount + 4 * treeCount)
+        .order(ByteOrder.LITTLE_ENDIAN);
+    for (double t : forest.threshold)
+      body.putDouble(t);
+    for (int f : forest.feature)
+      body.putInt(f);
+    for (int l : forest.left)
+      body.putInt(l);
+    for (int r : forest.roots)
+      body.putInt(r);
+    body.put(forest.value);
+    if (deflate) {
+      DeflaterOutputStream deflater = new DeflaterOutputStream(out);
+      deflater.write(body.array());
+      deflater.finish();
+    } else {
+      out.write(body.array());
+    }
+  }
+
+  /**
+   * Write a forest in the model file format
+   * @param forest flattened trees of the forest
+   * @param deflate whether to compress the arrays
+   * @return contents of the model file
+   */
+  public static byte[] toBytes(FlatForest forest, boolean deflate)
+      throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    write(forest, out, deflate);
+    return out.toByteArray();
+  }
+
+  @Override
+  public int treeCount() {
+    return treeCount;
+  }
+
+  public int nodeCount() {
+    return nodeCount;
+  }
+
+  /**
+   * @return number of features of the rows the trees were grown from
+   */
+  public int featureCount() {
+    return featureCount;
+  }
+
+  /**
+   * @param tree index of a tree
+   * @param features feature values of a row
+   * @return label the tree predicts for the row
+   */
+  public int predictTree(int tree, double[] features) {
+    int node = roots.get(tree);
+    int f;
+    while ((f = feature.get(node)) >= 0)
+      node = features[f] < threshold.get(node)
+          ? left.get(node) : left.get(node) + 1;
+    return value.get(node);
+  }
+
+  @Override
+  public int votes(double[] features) {
+    int votes = 0;
+    for (int tree = 0; tree < treeCount; ++tree)
+      votes += predictTree(tree, features);
+    return votes;
+  }
+
+  /**
+   * Reads the remaining bytes of a buffer
+   */
+  private static class ByteBufferInputStream extends InputStream {
+    private final ByteBuffer buffer;
+
+    ByteBufferInputStream(ByteBuffer buffer) {
+      this.buffer = buffer;
+    }
+
+    @Override
+    public int read() {
+      return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+    }
+
+    @Override
+    public int read(byte[] bytes, int offset, int length) {
+      if (!buffer.hasRemaining())
+        return -1;
+      length = Math.min(length, buffer.remaining());
+      buffer.get(bytes, offset, length);
+      return length;
+    }
+  }
+}
@@ -0,0 +1,77 @@
+import java.io.Serializable;
+import java.util.List;
+
+/**
+ * A forest of oblivious trees packed into flat arrays. Every tree is padded
+ * to the depth of the deepest one by repeating its leaf labels, so each row
+ * costs the same fixed number of comparisons in every tree, with no
+ * branching on the data.
+ */
+public class ObliviousForest implements Predictor, Serializable {
+  public final int depth;
+  // Feature and threshold of each level of tree t at t * depth + level
+  public final int[] features;
+  public final double[] thresholds;
+  // Label of each leaf of tree t at (t << depth) + leaf
+  public final byte[] leafLabels;
+  private final int treeCount;
+
+  /**
+   * Pack trees
+   * @param trees trees of the forest
+   */
+  public ObliviousForest(List<ObliviousTree> trees) {
+    int depth = 0;
+    for (ObliviousTree tree : trees)
+      depth = Math.max(depth, tree.depth());
+    this.depth = depth;
+    this.treeCount = trees.size();
+    features = new int[treeCount * depth];
+    thresholds = new double[treeCount * depth];
+    leafLabels = new byte[treeCount << depth];
+    for (int t = 0; t < treeCount; ++t) {
+      ObliviousTree tree = trees.get(t);
+      // Padding levels split anywhere, since both sides get the same labels
+      for (int level = 0; level < tree.depth(); ++level) {
+        features[t * depth + level] = tree.features[level];
+        thresholds[t * depth + level] = tree.thresholds[level];
+      }
+      int padding = depth - tree.depth();
+      for (int leaf = 0; leaf < 1 << depth; ++leaf)
+        leafLabels[(t << depth) + leaf] = tree.leafLabels[leaf >> padding];
+    }
+  }
+
+  @Override
+  public int treeCount() {
+    return treeCount;
+  }
+
+  @Override
+  public int votes(double[] x) {
+    int votes = 0;
+    for (int t = 0; t < treeCount; ++t)
+      votes += leafLabels[(t << depth) + leaf(t, x)];
+    return votes;
+  }
+
+  /**
+   * Count the votes of a batch of rows, one tree at a time
+   * @param rows feature values of each row
+   * @return number of trees voting for label 1 on each row
+   */
+  public int[] votes(double[][] rows) {
+    int[] votes = new int[rows.length];
+    for (int t = 0; t < treeCount; ++t)
+      for (int row = 0; row < rows.length; ++row)
+        votes[row] += leafLabels[(t << depth) + leaf(t, rows[row])];
+    return votes;
+  }
+
+  private int leaf(int t, double[] x) {
+    int leaf = 0;
+    for (int i = t * depth; i < (t + 1) * depth; ++i)
+      leaf = (leaf << 1) | (x[features[i]] < thresholds[i] ? 0 : 1);
+    return leaf;
+  }
+}
@@ -0,0 +1,216 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A long-running scoring service answering HTTP requests on the loopback
+ * interface, so a model is loaded once rather than for every prediction.
+ *
+ * POST /predict takes one row per line, as space separated feature values,
+ * and answers one line per row with the predicted label and the fraction
+ * of trees voting for label 1. POST /reload maps the served model file
+ * again and swaps it in; it takes no arguments, so a request can only make
+ * the server reload the file it was started with.
+ *
+ * Each request reads the current model once, so a swap never pauses or
+ * disturbs requests in flight; they finish with the model they started on.
+ * Model files are replaced by renaming, so the file an old model maps stays
+ * intact until that model is dropped.
+ *
+ * The JDK server delays small responses until the client acknowledges the
+ * last packet, which adds tens of milliseconds per request. Start the JVM
+ * with -Dsun.net.httpserver.nodelay=true to send them at once.
+ */
+public class PredictionServer implements AutoCloseable {
+  public static final int DEFAULT_PORT = 8080;
+
+  private final AtomicReference<MappedForest> model = new AtomicReference<>();
+  // File the model is reloaded from, or null if it was not read from a file
+  private final String modelFilename;
+  private final HttpServer server;
+  private final ExecutorService executor;
+
+  /**
+   * Start serving a model file
+   * @param modelFilename file written by MappedForest.write
+   * @param port port to listen on, or 0 for any free port
+   */
+  public PredictionServer(String modelFilename, int port) throws IOException {
+    this(MappedForest.open(modelFilename), modelFilename, port);
+  }
+
+  /**
+   * Start serving a model held in memory, such as a random_forest blob.
+   * New models are swapped in with swap, since there is no file to reload.
+   * @param forest model to serve until the first swap
+   * @param port port to listen on, or 0 for any free port
+   */
+  public PredictionServer(MappedForest forest, int port) throws IOException {
+    this(forest, null, port);
+  }
+
+  private PredictionServer(MappedForest forest, String modelFilename,
+                           int port) throws IOException {
+    model.set(forest);
+    this.modelFilename = modelFilename;
+    server = HttpServer.create(
+        new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+    server.createContext("/predict", this::handlePredict);
+    server.createContext("/reload", this::handleReload);
+    // One thread per request in flight, reused between requests
+    executor = Executors.newCachedThreadPool();
+    server.setExecutor(executor);
+    server.start();
+  }
+
+  /**
+   * @return port the server listens on
+   */
+  public int port() {
+    return server.getAddress().getPort();
+  }
+
+  /**
+   * @return model currently served
+   */
+  public MappedForest model() {
+    return model.get();
+  }
+
+  /**
+   * Serve another model. Requests already started finish with the old one.
+   * @param forest model to serve
+   */
+  public void swap(MappedForest forest) {
+    model.set(forest);
+  }
+
+  /**
+   * Map the served model file again and serve it
+   */
+  public void reload() throws IOException {
+    if (modelFilename == null)
+      throw new IllegalStateException("The model was not loaded from a file");
+    swap(MappedForest.open(modelFilename));
+  }
+
+  private void handlePredict(HttpExchange exchange) throws IOException {
+    try (exchange) {
+      if (!"POST".equals(exchange.getRequestMethod())) {
+        respond(exchange, 405, "Use POST\n");
+        return;
+      }
+      int status = 200;
+      String response;
+      try {
+        response = predict(model.get(), exchange.getRequestBody());
+      } catch (IllegalArgumentException e) {
+        status = 400;
+        response = e.getMessage() + "\n";
+      } catch (Throwable e) {
+        // Answer every request, so that no client waits on a failed one
+        status = 500;
+        response = "Scoring failed: " + e + "\n";
+      }
+      respond(exchange, status, response);
+    }
+  }
+
+  /**
+   * Score the rows of a request
+   * @param forest model to score every row with
+   * @param body one row of feature values per line
+   * @return one line per row with its label and vote fraction
+   * @throws IllegalArgumentException if a row is malformed
+   */
+  private static String predict(MappedForest forest, InputStream body)
+      throws IOException {
+    int treeCount = forest.treeCount();
+    int featureCount = forest.featureCount();
+    double[] features = new double[featureCount];
+    StringBuilder output = new StringBuilder();
+    BufferedReader reader = new BufferedReader(
+        new InputStreamReader(body, StandardCharsets.US_ASCII));
+    String line;
+    while ((line = reader.readLine()) != null) {
+      line = line.trim();
+      if (line.isEmpty())
+        continue;
+      String[] parts = line.split("\\s+");
+      if (parts.length != featureCount)
+        throw new IllegalArgumentException("Row has " + parts.length
+            + " values, expected " + featureCount + ": " + line);
+      try {
+        for (int i = 0; i < featureCount; ++i)
+          features[i] = Double.parseDouble(parts[i]);
+      } catch (NumberFormatException e) {
+        throw new IllegalArgumentException("Bad row: " + line);
+      }
+      int votes = forest.votes(features);
+      output.append(forest.label(votes)).append(' ')
+          .append((double) votes / treeCount).append('\n');
+    }
+    return output.toString();
+  }
+
+  private void handleReload(HttpExchange exchange) throws IOException {
+    try (exchange) {
+      if (!"POST".equals(exchange.getRequestMethod())) {
+        respond(exchange, 405, "Use POST\n");
+        return;
+      }
+      if (modelFilename == null) {
+        respond(exchange, 409, "The model was not loaded from a file\n");
+        return;
+      }
+      try {
+        reload();
+      } catch (Throwable e) {
+        respond(exchange, 500, "Cannot load " + modelFilename + ": " + e
+            + "\n");
+        return;
+      }
+      respond(exchange, 200, "Loaded " + modelFilename + " with "
+          + model.get().treeCount() + " trees\n");
+    }
+  }
+
+  private static void respond(HttpExchange exchange, int status, String body)
+      throws IOException {
+    byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+    exchange.getResponseHeaders().set("Content-Type", "text/plain");
+    exchange.sendResponseHeaders(status, bytes.length);
+    exchange.getResponseBody().write(bytes);
+  }
+
+  /**
+   * Stop accepting requests and wait briefly for those in flight
+   */
+  @Override
+  public void close() {
+    server.stop(1);
+    executor.shutdown();
+  }
+
+  /**
+   * Serve a model file
+   * @param args model file, and optionally the port
+   */
+  public static void main(String[] args) throws Exception {
+    if (args.length < 1) {
+      System.err.println("Usage: java -Dsun.net.httpserver.nodelay=true "
+          + "PredictionServer <model> [port]");
+      System.exit(1);
+    }
+    int port = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_PORT;
+    PredictionServer server = new PredictionServer(args[0], port);
+    System.out.printf("Serving %s on port %d\n", args[0], server.port());
+  }
+}
@@ -0,0 +1,39 @@
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * A trained forest that predicts the label of a row given as an array of
+ * feature values
+ */
+public interface Predictor {
+  /**
+   * @return number of trees in the forest
+   */
+  int treeCount();
+
+  /**
+   * @param features feature values of a row
+   * @return number of trees voting for label 1
+   */
+  int votes(double[] features);
+
+  /**
+   * Predict the label of a row by majority vote, breaking a tie at random
+   * @param features feature values of a row
+   * @return predicted label
+   */
+  default int predict(double[] features) {
+    return label(votes(features));
+  }
+
+  /**
+   * Label of a row with a number of votes, breaking a tie at random
+   * @param votes number of trees voting for label 1
+   * @return predicted label
+   */
+  default int label(int votes) {
+    int against = treeCount() - votes;
+    if (votes != against)
+      return votes > against ? 1 : 0;
+    return ThreadLocalRandom.current().nextBoolean() ? 1 : 0;
+  }
+}
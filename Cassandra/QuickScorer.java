@@ -0,0 +1,171 @@
+import java.util.Arrays;
+
+/**
+ * A forest scored with the QuickScorer algorithm. The leaves of each tree
+ * are numbered from left to right and a row keeps one bit per leaf, all set
+ * at first. Every split the row fails, that is every node where it would go
+ * right, rules out the leaves of its left subtree, which are a contiguous
+ * range of bits. The splits of each feature are sorted by threshold, so the
+ * failed splits of a row are a prefix of that list, found with no
+ * branching on the tree structure. The leaf a tree reaches is then its
+ * first bit still set.
+ */
+public class QuickScorer implements Predictor {
+  // Splits of feature f are [featureStart[f], featureStart[f + 1]), sorted
+  // by threshold
+  private final int[] featureStart;
+  private final double[] threshold;
+  // Words of the leaf bits cleared by each split, and the masks to apply to
+  // its first and last word. Words in between are cleared entirely.
+  private final int[] firstWord;
+  private final int[] lastWord;
+  private final long[] firstMask;
+  private final long[] lastMask;
+  // First word of the leaf bits and first leaf of each tree
+  private final int[] treeWord;
+  private final int[] treeLeaf;
+  private final int wordCount;
+  private final byte[] leafLabel;
+  // Leaf bits of the row being scored in each thread
+  private final ThreadLocal<long[]> bits;
+
+  /**
+   * Build the split lists of a forest
+   * @param forest flattened trees of the forest
+   */
+  public QuickScorer(FlatForest forest) {
+    int treeCount = forest.treeCount();
+    int nodeCount = forest.feature.length;
+    int featureCount = 0;
+    int splitCount = 0;
+    for (int node = 0; node < nodeCount; ++node) {
+      featureCount = Math.max(featureCount, forest.feature[node] + 1);
+      if (forest.feature[node] >= 0)
+        splitCount++;
+    }
+
+    // Number the leaves of every tree from left to right, and record the
+    // range of leaves under the left child of every split
+    int[] leftFrom = new int[nodeCount];
+    int[] leftTo = new int[nodeCount];
+    int[] splitTree = new int[splitCount];
+    int[] splitNode = new int[splitCount];
+    treeWord = new int[treeCount];
+    treeLeaf = new int[treeCount + 1];
+    leafLabel = new byte[nodeCount - splitCount];
+    int words = 0;
+    int splits = 0;
+    for (int tree = 0; tree < treeCount; ++tree) {
+      treeWord[tree] = words;
+      int leafCount = numberLeaves(forest, forest.roots[tree], 0, leftFrom,
+          leftTo);
+      treeLeaf[tree + 1] = treeLeaf[tree] + leafCount;
+      words += (leafCount + 63) >>> 6;
+      int end = tree + 1 < treeCount ? forest.roots[tree + 1] : nodeCount;
+      for (int node = forest.roots[tree]; node < end; ++node) {
+        if (forest.feature[node] >= 0) {
+          splitTree[splits] = tree;
+          splitNode[splits++] = node;
+        } else {
+          leafLabel[treeLeaf[tree] + leftFrom[node]] = forest.value[node];
+        }
+      }
+    }
+    wordCount = words;
+
+    Integer[] order = new Integer[splitCount];
+    for (int i = 0; i < splitCount; ++i)
+      order[i] = i;
+    Arrays.sort(order, (a, b) -> {
+      int featureA = forest.feature[splitNode[a]];
+      int featureB = forest.feature[splitNode[b]];
+      if (featureA != featureB)
+        return Integer.compare(featureA, featureB);
+      return Double.compare(forest.threshold[splitNode[a]],
+          forest.threshold[splitNode[b]]);
+    });
+
+    featureStart = new int[featureCount + 1];
+    threshold = new double[splitCount];
+    firstWord = new int[splitCount];
+    lastWord = new int[splitCount];
+    firstMask = new long[splitCount];
+    lastMask = new long[splitCount];
+    for (int i = 0; i < splitCount; ++i) {
+      int node = splitNode[order[i]];
+      int base = treeWord[splitTree[order[i]]];
+      int from = leftFrom[node];
+      int to = leftTo[node];
+      featureStart[forest.feature[node] + 1]++;
+      threshold[i] = forest.threshold[node];
+      firstWord[i] = base + (from >>> 6);
+      lastWord[i] = base + ((to - 1) >>> 6);
+      firstMask[i] = ~(-1L << (from & 63));
+      lastMask[i] = ~(-1L >>> (63 - ((to - 1) & 63)));
+      if (firstWord[i] == lastWord[i])
+        firstMask[i] |= lastMask[i];
+    }
+    for (int feature = 0; feature < featureCount; ++feature)
+      featureStart[feature + 1] += featureStart[feature];
+    bits = ThreadLocal.withInitial(() -> new long[wordCount]);
+  }
+
+  /**
+   * Number the leaves under a node from left to right. For a leaf, leftFrom
+   * holds its number; for a split, leftFrom and leftTo bound the numbers of
+   * the leaves under its left child.
+   * @return number of leaves under the node
+   */
+  private static int numberLeaves(FlatForest forest, int node, int first,
+                                  int[] leftFrom, int[] leftTo) {
+    if (forest.feature[node] < 0) {
+      leftFrom[node] = first;
+      return 1;
+    }
+    int leftCount = numberLeaves(forest, forest.left[node], first, leftFrom,
+        leftTo);
+    leftFrom[node] = first;
+    leftTo[node] = first + leftCount;
+    return leftCount + numberLeaves(forest, forest.left[node] + 1,
+        first + leftCount, leftFrom, leftTo);
+  }
+
+  @Override
+  public int treeCount() {
+    return treeWord.length;
+  }
+
+  @Override
+  public int votes(double[] features) {
+    long[] bits = this.bits.get();
+    Arrays.fill(bits, -1L);
+    int featureCount = featureStart.length - 1;
+    for (int feature = 0; feature < featureCount; ++feature) {
+      double value = features[feature];
+      int end = featureStart[feature + 1];
+      // A row fails every split whose threshold is not above its value
+      for (int i = featureStart[feature]; i < end; ++i) {
+        if (threshold[i] > value)
+          break;
+        int word = firstWord[i];
+        bits[word] &= firstMask[i];
+        if (word != lastWord[i]) {
+          while (++word < lastWord[i])
+            bits[word] = 0;
+          bits[word] &= lastMask[i];
+        }
+      }
+    }
+
+    int votes = 0;
+    for (int tree = 0; tree < treeWord.length; ++tree) {
+      int word = treeWord[tree];
+      while (bits[word] == 0)
+        word++;
+      int leaf = ((word - treeWord[tree]) << 6)
+          + Long.numberOfTrailingZeros(bits[word]);
+      votes += leafLabel[treeLeaf[tree] + leaf];
+    }
+    return votes;
+  }
+}
@@ -0,0 +1,406 @@
+import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Reads a text data file, one row per line with space separated features
+ * followed by the label, straight into the columns of a data set. The file
+ * is memory-mapped and cut into chunks on line boundaries, which are parsed
+ * in parallel: a first pass counts the rows of each chunk, so that the
+ * second can write every row at its place in the columns. Numbers are
+ * parsed without allocation, to the same values as Double.parseDouble.
+ */
+public class DatasetReader {
+  public static final int CHUNK_BYTES = 1 << 20;
+  // Longest mantissa, in digits, that a double holds exactly
+  private static final int MAX_EXACT_DIGITS = 15;
+  // Powers of ten that a double holds exactly
+  private static final double[] POWERS_OF_TEN = new double[23];
+  static {
+    POWERS_OF_TEN[0] = 1;
+    for (int i = 1; i < POWERS_OF_TEN.length; ++i)
+      POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+  }
+
+  /**
+   * The lines starting in one chunk of a mapped text file, read one at a
+   * time. Blank lines are skipped; the last line may run past the chunk.
+   */
+  static class ChunkLines {
+    // Bytes mapped past the end of the chunk for its last line. A longer
+    // line is mapped again on its own.
+    private static final int OVERHANG_BYTES = 1 << 16;
+
+    private final FileChannel channel;
+    private final long fileSize;
+    private MappedByteBuffer buffer;
+    // Offset of the buffer in the file
+    private long mapStart;
+    // Start of the next line and end of the chunk, in the buffer
+    private int position;
+    private int limit;
+    // Bounds of the current line in the buffer
+    private int lineStart;
+    private int lineEnd;
+    // Label of the current line, set by parse
+    int label;
+
+    /**
+     * Map the lines starting in [start, end) of a file
+     */
+    ChunkLines(FileChannel channel, long start, long end) throws IOException {
+      this.channel = channel;
+      fileSize = channel.size();
+      mapStart = Math.max(0, start - 1);
+      buffer = map(mapStart, end + OVERHANG_BYTES);
+      position = (int) (start - mapStart);
+      limit = (int) (end - mapStart);
+      // A line starting before this chunk belongs to the previous one
+      if (start > 0)
+        while (position <= limit && buffer.get(position - 1) != '\n')
+          position++;
+    }
+
+    /**
+     * @return the bytes of the file in [from, to), cut at the end of the file
+     */
+    private MappedByteBuffer map(long from, long to) throws IOException {
+      return channel.map(FileChannel.MapMode.READ_ONLY, from,
+          Math.min(Math.min(to, fileSize) - from, Integer.MAX_VALUE));
+    }
+
+    /**
+     * Move to the next line that is not blank
+     * @return false if no such line starts in the chunk
+     */
+    boolean next() throws IOException {
+      while (position < limit) {
+        lineStart = position;
+        lineEnd = position;
+        while (true) {
+          while (lineEnd < buffer.limit() && buffer.get(lineEnd) != '\n')
+            lineEnd++;
+          if (lineEnd < buffer.limit()
+              || mapStart + buffer.limit() == fileSize)
+            break;
+          // The line runs past the mapping, so map it again from its start
+          // with room for twice as much
+          long lineOffset = mapStart + lineStart;
+          buffer = map(lineOffset,
+              lineOffset + 2L * Math.max(lineEnd - lineStart, OVERHANG_BYTES));
+          if (buffer.limit() <= lineEnd - lineStart)
+            throw new IOException("Line at byte " + lineOffset
+                + " is too long");
+          lineEnd -= lineStart;
+          position -= lineStart;
+          limit -= lineStart;
+          mapStart = lineOffset;
+          lineStart = 0;
+        }
+        position = lineEnd + 1;
+        for (int i = lineStart; i < lineEnd; ++i)
+          if (!isSeparator(buffer.get(i)))
+            return true;
+      }
+      return false;
+    }
+
+    /**
+     * @return offset of the current line in the file
+     */
+    long offset() {
+      return mapStart + lineStart;
+    }
+
+    /**
+     * @return number of separated values on the current line
+     */
+    int countValues() {
+      int count = 0;
+      boolean inValue = false;
+      for (int i = lineStart; i < lineEnd; ++i) {
+        boolean separator = isSeparator(buffer.get(i));
+        if (!separator && !inValue)
+          count++;
+        inValue = !separator;
+      }
+      return count;
+    }
+
+    /**
+     * Parse the current line into features, and a value left over after
+     * them into label
+     * @param features receives the first values of the line
+     * @return number of values on the line
+     * @throws NumberFormatException if a value is not a number
+     */
+    int parse(double[] features) {
+      int value = 0;
+      int i = lineStart;
+      while (true) {
+        while (i < lineEnd && isSeparator(buffer.get(i)))
+          i++;
+        if (i == lineEnd)
+          return value;
+        int tokenEnd = i;
+        while (tokenEnd < lineEnd && !isSeparator(buffer.get(tokenEnd)))
+          tokenEnd++;
+        if (value < features.length)
+          features[value] = parseDouble(buffer, i, tokenEnd);
+        else if (value == features.length)
+          label = parseInt(buffer, i, tokenEnd);
+        value++;
+        i = tokenEnd;
+      }
+    }
+  }
+
+  /**
+   * Count or parse the rows of the lines starting in one chunk of the file
+   */
+  private static class ChunkParsing extends RecursiveAction {
+    private final FileChannel channel;
+    private final long start;
+    private final long end;
+    // Columns and labels to parse into, or null to only count the rows
+    double[][] columns;
+    byte[] labels;
+    int firstRow;
+    int rowCount;
+
+    ChunkParsing(FileChannel channel, long start, long end) {
+      this.channel = channel;
+      this.start = start;
+      this.end = end;
+    }
+
+    @Override
+    protected void compute() {
+      try {
+        ChunkLines lines = new ChunkLines(channel, start, end);
+        double[] features = columns == null ? null : new double[columns.length];
+        rowCount = 0;
+        while (lines.next()) {
+          if (columns != null)
+            parseRow(lines, features, firstRow + rowCount);
+          rowCount++;
+        }
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+
+    /**
+     * Parse the features and label of a line into a row of the columns
+     */
+    private void parseRow(ChunkLines lines, double[] features, int row)
+        throws IOException {
+      int valueCount;
+      try {
+        valueCount = lines.parse(features);
+      } catch (NumberFormatException e) {
+        throw new IOException("Row " + row + ": " + e.getMessage(), e);
+      }
+      if (valueCount != features.length + 1)
+        throw new IOException(String.format("Row %d: %d values, expected %d",
+            row, valueCount, features.length + 1));
+      for (int feature = 0; feature < features.length; ++feature)
+        columns[feature][row] = features[feature];
+      labels[row] = (byte) lines.label;
+    }
+  }
+
+  /**
+   * Read a data file with one thread per processor
+   * @param filename data file
+   * @return data set holding the rows of the file in order
+   */
+  public static Dataset read(String filename) throws IOException {
+    return read(filename, Runtime.getRuntime().availableProcessors());
+  }
+
+  /**
+   * Read a data file
+   * @param filename data file
+   * @param threadCount number of threads parsing the file
+   * @return data set holding the rows of the file in order
+   */
+  public static Dataset read(String filename, int threadCount)
+      throws IOException {
+    try (RandomAccessFile file = new RandomAccessFile(filename, "r");
+         FileChannel channel = file.getChannel()) {
+      long size = channel.size();
+      List<ChunkParsing> chunks = new ArrayList<>();
+      for (long start = 0; start < size; start += CHUNK_BYTES)
+        chunks.add(new ChunkParsing(channel, start,
+            Math.min(size, start + CHUNK_BYTES)));
+      int featureCount = Math.max(0, countValues(channel) - 1);
+
+      ForkJoinPool pool = new ForkJoinPool(threadCount);
+      try {
+        // Count the rows of each chunk to find where its rows go
+        runAll(pool, chunks);
+        int rowCount = 0;
+        for (ChunkParsing chunk : chunks) {
+          chunk.firstRow = rowCount;
+          rowCount += chunk.rowCount;
+        }
+
+        double[][] columns = new double[featureCount][rowCount];
+        byte[] labels = new byte[rowCount];
+        for (int i = 0; i < chunks.size(); ++i) {
+          ChunkParsing counted = chunks.get(i);
+          ChunkParsing chunk =
+              new ChunkParsing(channel, counted.start, counted.end);
+          chunk.firstRow = counted.firstRow;
+          chunk.columns = columns;
+          chunk.labels = labels;
+          chunks.set(i, chunk);
+        }
+        runAll(pool, chunks);
+        return new Dataset(columns, labels);
+      } finally {
+        pool.shutdown();
+      }
+    }
+  }
+
+  private static void runAll(ForkJoinPool pool, List<ChunkParsing> chunks)
+      throws IOException {
+    for (ChunkParsing chunk : chunks)
+      pool.execute(chunk);
+    try {
+      for (ChunkParsing chunk : chunks)
+        chunk.join();
+    } catch (UncheckedIOException e) {
+      throw e.getCause();
+    }
+  }
+
+  /**
+   * @return number of values on the first line of a file that is not
+   * blank, or 0 if there is none
+   */
+  static int countValues(FileChannel channel) throws IOException {
+    long size = channel.size();
+    for (long start = 0; start < size; start += CHUNK_BYTES) {
+      ChunkLines lines =
+          new ChunkLines(channel, start, Math.min(size, start + CHUNK_BYTES));
+      if (lines.next())
+        return lines.countValues();
+    }
+    return 0;
+  }
+
+  static boolean isSeparator(byte b) {
+    return b == ' ' || b == '\t' || b == '\r';
+  }
+
+  /**
+   * Parse a decimal number. Numbers of at most MAX_EXACT_DIGITS significant
+   * digits and a power of ten held exactly by a double are computed with
+   * one correctly rounded multiplication or division, which gives the same
+   * value as Double.parseDouble; any other text is left to it.
+   * @return value of the text in [from, to) of a buffer
+   */
+  static double parseDouble(MappedByteBuffer buffer, int from, int to) {
+    int i = from;
+    boolean negative = false;
+    byte c = buffer.get(i);
+    if (c == '-' || c == '+') {
+      negative = c == '-';
+      i++;
+    }
+    long mantissa = 0;
+    int digits = 0;
+    int exponent = 0;
+    boolean seenDigit = false;
+    boolean seenPoint = false;
+    for (; i < to; ++i) {
+      c = buffer.get(i);
+      if (c >= '0' && c <= '9') {
+        seenDigit = true;
+        if (seenPoint)
+          exponent--;
+        // Leading zeros are not significant
+        if (mantissa == 0 && c == '0')
+          continue;
+        if (++digits > MAX_EXACT_DIGITS)
+          return parseDoubleSlowly(buffer, from, to);
+        mantissa = mantissa * 10 + (c - '0');
+      } else if (c == '.' && !seenPoint) {
+        seenPoint = true;
+      } else {
+        break;
+      }
+    }
+    if (i < to && seenDigit && (c == 'e' || c == 'E')) {
+      int exponentEnd = i + 1;
+      if (exponentEnd < to && (buffer.get(exponentEnd) == '-'
+          || buffer.get(exponentEnd) == '+'))
+        exponentEnd++;
+      int exponentStart = exponentEnd;
+      while (exponentEnd < to && exponentEnd - exponentStart < 4
+          && buffer.get(exponentEnd) >= '0' && buffer.get(exponentEnd) <= '9')
+        exponentEnd++;
+      if (exponentEnd < to || exponentEnd == exponentStart)
+        return parseDoubleSlowly(buffer, from, to);
+      exponent += parseInt(buffer, i + 1, to);
+      i = to;
+    }
+    if (i < to || !seenDigit)
+      return parseDoubleSlowly(buffer, from, to);
+
+    double value;
+    if (mantissa == 0)
+      value = 0;
+    else if (exponent >= 0 && exponent < POWERS_OF_TEN.length)
+      value = mantissa * POWERS_OF_TEN[exponent];
+    else if (exponent < 0 && -exponent < POWERS_OF_TEN.length)
+      value = mantissa / POWERS_OF_TEN[-exponent];
+    else
+      return parseDoubleSlowly(buffer, from, to);
+    return negative ? -value : value;
+  }
+
+  private static double parseDoubleSlowly(MappedByteBuffer buffer, int from,
+                                          int to) {
+    byte[] text = new byte[to - from];
+    buffer.get(from, text);
+    return Double.parseDouble(new String(text, StandardCharsets.US_ASCII));
+  }
+
+  /**
+   * @return value of the decimal integer in [from, to) of a buffer
+   */
+  static int parseInt(MappedByteBuffer buffer, int from, int to) {
+    int i = from;
+    boolean negative = false;
+    if (i < to && (buffer.get(i) == '-' || buffer.get(i) == '+')) {
+      negative = buffer.get(i) == '-';
+      i++;
+    }
+    if (i == to || to - i > 9)
+      return parseIntSlowly(buffer, from, to);
+    int value = 0;
+    for (; i < to; ++i) {
+      byte c = buffer.get(i);
+      if (c < '0' || c > '9')
+        return parseIntSlowly(buffer, from, to);
+      value = value * 10 + (c - '0');
+    }
+    return negative ? -value : value;
+  }
+
+  private static int parseIntSlowly(MappedByteBuffer buffer, int from,
+                                    int to) {
+    byte[] text = new byte[to - from];
+    buffer.get(from, text);
+    return Integer.parseInt(new String(text, StandardCharsets.US_ASCII));
+  }
+}
@@ -1,6 +1,3 @@
-import java.io.BufferedReader;
-import java.io.FileNotFoundException;
-import java.io.FileReader;
 import java.io.IOException;
 import java.util.*;
 
@@ -8,57 +5,29 @@ import java.util.*;
  * Created by Jianhong Li on 9/28/15.
  */
 public class Main {
-  public static List<DataRow> readFile (String filename)
-      throws IOException {
-    BufferedReader br = new BufferedReader(new FileReader(filename));
-    List<DataRow> dataMatrix = new ArrayList<>();
-
-    try {
-      String line = br.readLine();
-
-      while (line != null) {
-        String[] parts = line.split(" ");
-        List<Double> features = new ArrayList<>();
-        for (int i = 0; i < parts.length - 1; ++i) {
-          features.add(Double.parseDouble(parts[i]));
-        }
-        int label = Integer.parseInt(parts[parts.length - 1]);
-
-        DataRow row = new DataRow(features, label);
-        dataMatrix.add(row);
-        line = br.readLine();
-      }
-    } catch (IOException e) {
-      e.printStackTrace();
-    } finally {
-      br.close();
-    }
-    return dataMatrix;
-  }
-
   public static void validate(TreeNode root, String testingFilename)
       throws IOException {
-    List<DataRow> dataMatrix = readFile(testingFilename);
+    Dataset dataset = DatasetReader.read(testingFilename);
     int correctCount = 0;
-    for (DataRow row: dataMatrix) {
-      if (root.test(row.features) == row.label)
+    for (int row = 0; row < dataset.rowCount; ++row) {
+      if (root.test(dataset, row) == dataset.label(row))
         correctCount++;
     }
     System.out.printf("Correctness: %f%%\n",
-        (double)correctCount / dataMatrix.size() * 100);
+        (double)correctCount / dataset.rowCount * 100);
   }
 
   public static void main (String[] args) throws IOException {
     // Read data
     String trainingFilename = "training";
-    List<DataRow> dataMatrix = readFile(trainingFilename);
+    Dataset dataset = DatasetReader.read(trainingFilename);
 
     // Construct Decision tree with training data set
-    int featureCount = dataMatrix.get(0).features.size();
+    int featureCount = dataset.featureCount;
     Set<Integer> remainFeatures = new HashSet<>();
     for (int i = 0; i < featureCount; ++i)
       remainFeatures.add(i);
-    TreeNode root = new TreeNode(remainFeatures, dataMatrix);
+    TreeNode root = new TreeNode(remainFeatures, dataset);
     root.construct();
 
     // Validate test data
@@ -0,0 +1,142 @@
+import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A data set kept on disk in a binary row file and read through memory
+ * mapping, so it may be far larger than the heap. The file starts with a
+ * header of a magic number, the row count and the feature count, followed by
+ * one record per row: every feature as a double, then the label as a byte.
+ */
+public class MappedDataset {
+  public static final int MAGIC = 0x52464453;
+  private static final int HEADER_SIZE = 12;
+
+  public final int rowCount;
+  public final int featureCount;
+  private final int recordSize;
+  // Rows are mapped in chunks, since one mapping holds at most 2GB
+  private final int rowsPerChunk;
+  private final MappedByteBuffer[] chunks;
+
+  private MappedDataset(int rowCount, int featureCount,
+                        MappedByteBuffer[] chunks, int rowsPerChunk) {
+    this.rowCount = rowCount;
+    this.featureCount = featureCount;
+    this.recordSize = featureCount * 8 + 1;
+    this.rowsPerChunk = rowsPerChunk;
+    this.chunks = chunks;
+  }
+
+  /**
+   * Map a binary row file
+   * @param filename file written by convert
+   * @return the mapped data set
+   */
+  public static MappedDataset open(String filename) throws IOException {
+    try (RandomAccessFile file = new RandomAccessFile(filename, "r");
+         FileChannel channel = file.getChannel()) {
+      if (file.readInt() != MAGIC)
+        throw new IOException(filename + " is not a binary row file");
+      int rowCount = file.readInt();
+      int featureCount = file.readInt();
+      int recordSize = featureCount * 8 + 1;
+      if (channel.size() < HEADER_SIZE + (long) rowCount * recordSize)
+        throw new IOException(filename + " is truncated");
+
+      int rowsPerChunk = Integer.MAX_VALUE / recordSize;
+      int chunkCount = (int) (((long) rowCount + rowsPerChunk - 1) / rowsPerChunk);
+      MappedByteBuffer[] chunks = new MappedByteBuffer[chunkCount];
+      for (int i = 0; i < chunkCount; ++i) {
+        long firstRow = (long) i * rowsPerChunk;
+        long rows = Math.min(rowsPerChunk, rowCount - firstRow);
+        chunks[i] = channel.map(FileChannel.MapMode.READ_ONLY,
+            HEADER_SIZE + firstRow * recordSize, rows * recordSize);
+      }
+      return new MappedDataset(rowCount, featureCount, chunks, rowsPerChunk);
+    }
+  }
+
+  /**
+   * Convert a text data file, one row per line with separated features
+   * followed by the label, into a binary row file. Lines are parsed as
+   * DatasetReader parses them and streamed chunk by chunk, so the file may
+   * be larger than the heap.
+   * @param textFilename file in the format read by DatasetReader
+   * @param filename binary row file to write
+   */
+  public static void convert(String textFilename, String filename)
+      throws IOException {
+    int rowCount = 0;
+    int featureCount;
+    try (RandomAccessFile text = new RandomAccessFile(textFilename, "r");
+         FileChannel channel = text.getChannel();
+         DataOutputStream out = new DataOutputStream(
+             new BufferedOutputStream(new FileOutputStream(filename)))) {
+      featureCount = Math.max(0, DatasetReader.countValues(channel) - 1);
+      double[] features = new double[featureCount];
+      // The header is filled in once the rows are counted
+      out.write(new byte[HEADER_SIZE]);
+      long size = channel.size();
+      for (long start = 0; start < size; start += DatasetReader.CHUNK_BYTES) {
+        DatasetReader.ChunkLines lines = new DatasetReader.ChunkLines(channel,
+            start, Math.min(size, start + DatasetReader.CHUNK_BYTES));
+        while (lines.next()) {
+          int valueCount;
+          try {
+            valueCount = lines.parse(features);
+          } catch (NumberFormatException e) {
+            throw new IOException("Row " + rowCount + " of " + textFilename
+                + ": " + e.getMessage(), e);
+          }
+          if (valueCount != featureCount + 1)
+            throw new IOException("Row " + rowCount + " of " + textFilename
+                + " has " + valueCount + " values, expected "
+                + (featureCount + 1));
+          for (double value : features)
+            out.writeDouble(value);
+          out.writeByte(lines.label);
+          rowCount++;
+        }
+      }
+    }
+    try (RandomAccessFile file = new RandomAccessFile(filename, "rw")) {
+      file.writeInt(MAGIC);
+      file.writeInt(rowCount);
+      file.writeInt(featureCount);
+    }
+  }
+
+  public double get(int row, int feature) {
+    return chunks[row / rowsPerChunk].getDouble(
+        (row % rowsPerChunk) * recordSize + feature * 8);
+  }
+
+  public int label(int row) {
+    return chunks[row / rowsPerChunk].get(
+        (row % rowsPerChunk) * recordSize + recordSize - 1);
+  }
+
+  /**
+   * Choose the bin cuts of every feature from evenly spaced rows, reading
+   * every row when there are at most sampleCount of them
+   * @param maxBins maximum number of bins per feature
+   * @param sampleCount maximum number of rows to read
+   * @return sorted cut values of each feature, as in BinnedDataset
+   */
+  public double[][] binCuts(int maxBins, int sampleCount) {
+    int count = Math.min(rowCount, sampleCount);
+    double[][] columns = new double[featureCount][count];
+    for (int i = 0; i < count; ++i) {
+      int row = (int) ((long) i * rowCount / count);
+      for (int feature = 0; feature < featureCount; ++feature)
+        columns[feature][i] = get(row, feature);
+    }
+    double[][] cuts = new double[featureCount][];
+    for (int feature = 0; feature < featureCount; ++feature) {
+      cuts[feature] = BinnedDataset.findCuts(columns[feature], maxBins);
+      columns[feature] = null;
+    }
+    return cuts;
+  }
+}
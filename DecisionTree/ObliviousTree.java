@@ -0,0 +1,201 @@
+import java.io.Serializable;
+import java.util.*;
+
+/**
+ * A decision tree in which every node of a level splits on the same feature
+ * and threshold. The leaf of a row is then a number whose bits are the
+ * outcomes of one comparison per level, computed with no branching on the
+ * data.
+ */
+public class ObliviousTree implements Serializable {
+  // Depth of trees grown with no maxDepth set
+  public static final int DEFAULT_DEPTH = 6;
+
+  // Feature and threshold of each level. Rows with a value below the
+  // threshold take bit 0 at that level.
+  public final int[] features;
+  public final double[] thresholds;
+  // Label of each leaf, numbered with the first level as the highest bit
+  public final byte[] leafLabels;
+
+  public ObliviousTree(int[] features, double[] thresholds, byte[] leafLabels) {
+    this.features = features;
+    this.thresholds = thresholds;
+    this.leafLabels = leafLabels;
+  }
+
+  public int depth() {
+    return features.length;
+  }
+
+  /**
+   * @param x feature values of a row
+   * @return leaf the row falls into
+   */
+  public int leaf(double[] x) {
+    int leaf = 0;
+    for (int level = 0; level < features.length; ++level)
+      leaf = (leaf << 1) | (x[features[level]] < thresholds[level] ? 0 : 1);
+    return leaf;
+  }
+
+  /**
+   * @param x feature values of a row
+   * @return predicted label
+   */
+  public int predict(double[] x) {
+    return leafLabels[leaf(x)];
+  }
+
+  /**
+   * Grow a tree from some rows of a data set. Each level takes the bin edge
+   * of the quantized features that gains the most information summed over
+   * all nodes of the level. Growth stops at maxDepth, or at DEFAULT_DEPTH if
+   * it is not set, and when no split gains at least minGain or all nodes
+   * are pure.
+   * @param dataset data set the rows belong to
+   * @param rows rows to grow the tree from
+   * @param remainFeatures features the tree may split on
+   * @param options settings of the tree; maxBins, maxDepth and minGain are
+   *                used
+   * @param random generator for breaking ties between labels
+   * @return the grown tree
+   */
+  public static ObliviousTree grow(Dataset dataset, int[] rows,
+                                   Set<Integer> remainFeatures,
+                                   TreeOptions options,
+                                   SplittableRandom random) {
+    BinnedDataset bins = dataset.binned(options.maxBins);
+    byte[] labels = dataset.labels;
+    int maxDepth = options.maxDepth == Integer.MAX_VALUE
+        ? DEFAULT_DEPTH : options.maxDepth;
+    int[] features = new int[remainFeatures.size()];
+    int next = 0;
+    for (int feature : remainFeatures)
+      features[next++] = feature;
+    Arrays.sort(features);
+
+    // Leaf of each row, in the order of rows
+    int[] leafOf = new int[rows.length];
+    List<Integer> levelFeatures = new ArrayList<>();
+    List<Double> levelThresholds = new ArrayList<>();
+    for (int depth = 0; depth < maxDepth; ++depth) {
+      int leafCount = 1 << depth;
+      int[] counts = new int[2 * leafCount];
+      for (int i = 0; i < rows.length; ++i)
+        counts[2 * leafOf[i] + labels[rows[i]]]++;
+      // Entropy of the level, weighted by the rows of each node
+      double levelEntropy = 0;
+      for (int leaf = 0; leaf < leafCount; ++leaf)
+        levelEntropy += weightedEntropy(counts[2 * leaf], counts[2 * leaf + 1]);
+      if (levelEntropy == 0)
+        break;
+
+      double bestScore = Double.NEGATIVE_INFINITY;
+      int bestFeature = -1;
+      int bestBin = -1;
+      int[] below = new int[2 * leafCount];
+      for (int feature : features) {
+        byte[] codes = bins.codes[feature];
+        int binCount = bins.binCount(feature);
+        // Label counts of each node in each bin
+        int[] histogram = new int[2 * leafCount * binCount];
+        for (int i = 0; i < rows.length; ++i) {
+          int row = rows[i];
+          histogram[2 * (leafOf[i] * binCount + (codes[row] & 0xff))
+              + labels[row]]++;
+        }
+        Arrays.fill(below, 0);
+        for (int bin = 0; bin < binCount - 1; ++bin) {
+          boolean empty = true;
+          for (int leaf = 0; leaf < leafCount; ++leaf) {
+            int index = 2 * (leaf * binCount + bin);
+            if (histogram[index] + histogram[index + 1] > 0)
+              empty = false;
+            below[2 * leaf] += histogram[index];
+            below[2 * leaf + 1] += histogram[index + 1];
+          }
+          // Edges after an empty bin give the same split as the edge before
+          if (empty)
+            continue;
+          double score = levelEntropy;
+          for (int leaf = 0; leaf < leafCount; ++leaf) {
+            int below0 = below[2 * leaf];
+            int below1 = below[2 * leaf + 1];
+            score -= weightedEntropy(below0, below1)
+                + weightedEntropy(counts[2 * leaf] - below0,
+                counts[2 * leaf + 1] - below1);
+          }
+          if (score > bestScore) {
+            bestScore = score;
+            bestFeature = feature;
+            bestBin = bin;
+          }
+        }
+      }
+      if (bestFeature < 0 || bestScore / rows.length < options.minGain)
+        break;
+
+      levelFeatures.add(bestFeature);
+      levelThresholds.add(bins.cuts[bestFeature][bestBin]);
+      byte[] codes = bins.codes[bestFeature];
+      for (int i = 0; i < rows.length; ++i)
+        leafOf[i] = (leafOf[i] << 1)
+            | ((codes[rows[i]] & 0xff) > bestBin ? 1 : 0);
+    }
+
+    int depth = levelFeatures.size();
+    int[] treeFeatures = new int[depth];
+    double[] treeThresholds = new double[depth];
+    for (int level = 0; level < depth; ++level) {
+      treeFeatures[level] = levelFeatures.get(level);
+      treeThresholds[level] = levelThresholds.get(level);
+    }
+    return new ObliviousTree(treeFeatures, treeThresholds,
+        leafLabels(leafOf, rows, labels, depth, random));
+  }
+
+  /**
+   * Label every leaf with the majority label of its rows. An empty leaf
+   * takes the label of its nearest ancestor holding any rows.
+   */
+  private static byte[] leafLabels(int[] leafOf, int[] rows, byte[] labels,
+                                   int depth, SplittableRandom random) {
+    // Label counts of the nodes of each level, summed up from the leaves
+    int[][] counts = new int[depth + 1][];
+    counts[depth] = new int[2 << depth];
+    for (int i = 0; i < rows.length; ++i)
+      counts[depth][2 * leafOf[i] + labels[rows[i]]]++;
+    for (int level = depth - 1; level >= 0; --level) {
+      counts[level] = new int[2 << level];
+      for (int i = 0; i < counts[level + 1].length; ++i)
+        counts[level][2 * (i >> 2) + (i & 1)] += counts[level + 1][i];
+    }
+
+    byte[] leafLabels = new byte[1 << depth];
+    for (int leaf = 0; leaf < leafLabels.length; ++leaf) {
+      int level = depth;
+      int node = leaf;
+      while (level > 0
+          && counts[level][2 * node] + counts[level][2 * node + 1] == 0) {
+        level--;
+        node >>= 1;
+      }
+      int count0 = counts[level][2 * node];
+      int count1 = counts[level][2 * node + 1];
+      if (count0 != count1)
+        leafLabels[leaf] = (byte) (count0 > count1 ? 0 : 1);
+      else
+        leafLabels[leaf] = (byte) (random.nextDouble() < 0.5 ? 0 : 1);
+    }
+    return leafLabels;
+  }
+
+  /**
+   * @return entropy of a node times its number of rows
+   */
+  private static double weightedEntropy(int count0, int count1) {
+    int count = count0 + count1;
+    return count == 0 ? 0 : count * TreeNode.entropy(count0, count1);
+  }
+}
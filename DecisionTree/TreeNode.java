@@ -1,24 +1,118 @@
+import java.io.Serializable;
 import java.util.*;
-import java.util.stream.Collectors;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
 
 /**
  * Created by Jianhong Li on 9/28/15.
  */
 
-public class TreeNode {
+public class TreeNode implements Serializable {
+  private static final double LOG_2 = Math.log(2);
+
   public TreeNode leftChild;
   public TreeNode rightChild;
-  public Set<Integer> remainFeatures;
-  public List<DataRow> dataMatrix;
-  public Integer label;
-  public Double entropy;
-  public Integer selectedFeature;
-  public Double selectedThreshold;
-  public Double maxIG;
+  public int label;
+  // Feature and threshold of the split, or -1 for a leaf
+  public int selectedFeature = -1;
+  public double selectedThreshold;
+  // State used while the node is grown, dropped once it is split or becomes
+  // a leaf so that a trained tree holds no sample data
+  private transient Training training;
+
+  /**
+   * Training state of a single node
+   */
+  private static class Training {
+    // Selected features of a root, kept so that construct can attach other
+    // data to it
+    Set<Integer> remainFeatures;
+    TrainingContext context;
+    // Training data of this node, given as indices into a shared data set
+    int[] rows;
+    // Rows of this node sorted by each remaining feature, indexed by
+    // feature. Only used in presorted mode.
+    int[][] orders;
+    // Label counts of the rows of this node in each bin, indexed by feature
+    // and then by 2 * bin + label. Only used in histogram mode.
+    int[][] histograms;
+    // Generator for breaking ties, split off the parent's generator so that
+    // a seeded tree grows the same in any thread
+    SplittableRandom random;
+    // Distance from the root of the tree
+    int depth;
+    double entropy;
+    // Information gain of the split found for this node, and the order in
+    // which nodes were queued, used by best-first growth
+    double gain;
+    long queueOrder;
+  }
+
+  // A node whose split and label are set by its builder
+  TreeNode() {
+  }
+
+  public TreeNode(Set<Integer> remainFeatures) {
+    training = new Training();
+    training.remainFeatures = remainFeatures;
+  }
 
   public TreeNode(Set<Integer> remainFeatures, List<DataRow> dataMatrix) {
-    this.remainFeatures = remainFeatures;
-    this.dataMatrix = dataMatrix;
+    this(remainFeatures, Dataset.fromRows(dataMatrix));
+  }
+
+  public TreeNode(Set<Integer> remainFeatures, Dataset dataset) {
+    this(remainFeatures, dataset, dataset.allRows());
+  }
+
+  public TreeNode(Set<Integer> remainFeatures, Dataset dataset, int[] rows) {
+    this(remainFeatures, dataset, rows, new TreeOptions());
+  }
+
+  public TreeNode(Set<Integer> remainFeatures, Dataset dataset, int[] rows,
+                  TreeOptions options) {
+    this(remainFeatures, dataset, rows, options, new SplittableRandom());
+  }
+
+  public TreeNode(Set<Integer> remainFeatures, Dataset dataset, int[] rows,
+                  TreeOptions options, SplittableRandom random) {
+    setTrainingData(remainFeatures, dataset, options, rows, random);
+  }
+
+  private TreeNode(TrainingContext context, int[] rows, int[][] orders,
+                   int[][] histograms, SplittableRandom random, int depth) {
+    training = new Training();
+    training.context = context;
+    training.rows = rows;
+    training.orders = orders;
+    training.histograms = histograms;
+    training.random = random;
+    training.depth = depth;
+    initValues();
+  }
+
+  /**
+   * Attach the training data of a root node, sorting every remaining feature
+   * once if the tree is grown in presorted mode, or counting its histograms
+   * in histogram mode
+   */
+  private void setTrainingData(Set<Integer> remainFeatures, Dataset dataset,
+                               TreeOptions options, int[] rows,
+                               SplittableRandom random) {
+    TrainingContext context =
+        new TrainingContext(dataset, options, remainFeatures);
+    training = new Training();
+    training.remainFeatures = remainFeatures;
+    training.context = context;
+    training.rows = rows;
+    training.random = random;
+    if (context.options.splitMode == TreeOptions.SplitMode.PRESORTED) {
+      training.orders = new int[context.dataset.featureCount][];
+      for (int feature : context.features)
+        training.orders[feature] = context.dataset.sortRows(feature, rows);
+    } else if (context.bins != null) {
+      training.histograms = buildHistograms(rows);
+    }
     initValues();
   }
 
@@ -26,32 +120,53 @@ public class TreeNode {
    * Initialize values in a TreeNode instance
    */
   private void initValues() {
-    int[] labelCount = new int[2];
-    Boolean flag = true;
-    DataRow lastRow = null;
-    for (DataRow row: dataMatrix) {
-      labelCount[row.label]++;
-      if (lastRow != null) {
-        if (row != lastRow)
+    TrainingContext context = training.context;
+    int[] rows = training.rows;
+    int[][] orders = training.orders;
+    int[][] histograms = training.histograms;
+    int[] labelCount = countLabels();
+    int sampleCount = rows.length;
+
+    // Check whether all rows share the same value on every remaining feature
+    boolean flag = true;
+    if (sampleCount > 0 && orders != null) {
+      // The smallest and largest values are at the ends of each order
+      for (int feature : training.context.features) {
+        double[] column = context.dataset.columns[feature];
+        int[] order = orders[feature];
+        if (column[order[0]] != column[order[sampleCount - 1]]) {
           flag = false;
-      } else {
-        lastRow = row;
+          break;
+        }
+      }
+    } else if (sampleCount > 0 && histograms != null) {
+      // Rows within one bin cannot be told apart in histogram mode
+      for (int feature : training.context.features) {
+        int[] histogram = histograms[feature];
+        int occupiedBins = 0;
+        for (int bin = 0; 2 * bin < histogram.length; ++bin)
+          if (histogram[2 * bin] + histogram[2 * bin + 1] > 0)
+            occupiedBins++;
+        if (occupiedBins > 1) {
+          flag = false;
+          break;
+        }
+      }
+    } else if (sampleCount > 0) {
+      for (int feature : training.context.features) {
+        double[] column = context.dataset.columns[feature];
+        double first = column[rows[0]];
+        for (int row : rows)
+          if (column[row] != first) {
+            flag = false;
+            break;
+          }
+        if (!flag)
+          break;
       }
     }
 
-    int sampleCount = dataMatrix.size();
-
-    // Calculate the entropy
-    double score = 0;
-    for (int i = 0; i < 2; ++i) {
-      double p = ((double)labelCount[i]) / sampleCount;
-      if (p == 0)
-        score += 0;
-      else
-        score += -p * (Math.log(p) / Math.log(2));
-    }
-
-    this.entropy = score;
+    training.entropy = entropy(labelCount[0], labelCount[1]);
 
     // Update label
     this.label = -1;
@@ -64,111 +179,610 @@ public class TreeNode {
       if (labelCount[1] != labelCount[0]) {
         this.label = labelCount[0] > labelCount[1] ? 0 : 1;
       } else {
-        this.label = Math.random() < 0.5 ? 0 : 1;
+        this.label = training.random.nextDouble() < 0.5 ? 0 : 1;
       }
 
     }
   }
 
   /**
-   * Construct the tree using ID3
+   * @return the label held by most rows of this node, breaking a tie at
+   * random
+   */
+  private int majorityLabel() {
+    int[] labelCount = countLabels();
+    if (labelCount[1] != labelCount[0])
+      return labelCount[0] > labelCount[1] ? 0 : 1;
+    return training.random.nextDouble() < 0.5 ? 0 : 1;
+  }
+
+  private int[] countLabels() {
+    int[] labelCount = new int[2];
+    byte[] labels = training.context.dataset.labels;
+    for (int row : training.rows)
+      labelCount[labels[row]]++;
+    return labelCount;
+  }
+
+  /**
+   * Binary entropy of a label distribution
+   * @param count0 number of rows labeled 0
+   * @param count1 number of rows labeled 1
+   * @return entropy in bits
+   */
+  static double entropy(int count0, int count1) {
+    int sampleCount = count0 + count1;
+    return entropyTerm(count0, sampleCount) + entropyTerm(count1, sampleCount);
+  }
+
+  private static double entropyTerm(int count, int sampleCount) {
+    double p = ((double) count) / sampleCount;
+    if (p == 0)
+      return 0;
+    return -p * (Math.log(p) / LOG_2);
+  }
+
+  /**
+   * Construct the tree using ID3. Subtrees of large nodes are grown in
+   * parallel on a ForkJoinPool. With a leaf budget, the tree is grown best
+   * first instead.
    */
   public void construct() {
-    if (label != -1)
+    if (training == null || training.context == null)
+      throw new IllegalStateException(
+          "No training data is attached to this node");
+    TreeOptions options = training.context.options;
+    if (options.maxLeaves != Integer.MAX_VALUE) {
+      constructBestFirst();
       return;
-    maxIG = findThreshold();
+    }
+    if (options.parallelism > 1
+        && training.rows.length >= options.parallelConstructCutoff
+        && !ForkJoinTask.inForkJoinPool()) {
+      TreeOptions.pool(options.parallelism).invoke(new SubtreeConstruction(this));
+      return;
+    }
+    constructSubtree();
+  }
+
+  private void constructSubtree() {
+    if (!searchSplit())
+      return;
+    int sampleCount = training.rows.length;
+    TreeOptions options = training.context.options;
     splitTree();
-    leftChild.construct();
-    rightChild.construct();
+
+    if (options.parallelism > 1
+        && sampleCount >= options.parallelConstructCutoff
+        && ForkJoinTask.inForkJoinPool()) {
+      ForkJoinTask.invokeAll(new SubtreeConstruction(leftChild),
+          new SubtreeConstruction(rightChild));
+    } else {
+      leftChild.constructSubtree();
+      rightChild.constructSubtree();
+    }
+  }
+
+  /**
+   * Grow the tree by always splitting the open node with the largest
+   * information gain weighted by its size, until the tree has
+   * options.maxLeaves leaves. The remaining open nodes become leaves.
+   */
+  private void constructBestFirst() {
+    PriorityQueue<TreeNode> queue = new PriorityQueue<>((a, b) -> {
+      double gainA = a.training.gain * a.training.rows.length;
+      double gainB = b.training.gain * b.training.rows.length;
+      return gainA != gainB ? Double.compare(gainB, gainA)
+          : Long.compare(a.training.queueOrder, b.training.queueOrder);
+    });
+    int maxLeaves = training.context.options.maxLeaves;
+    long queued = 0;
+    if (searchSplit()) {
+      training.queueOrder = queued++;
+      queue.add(this);
+    }
+
+    int leafCount = 1;
+    while (!queue.isEmpty() && leafCount < maxLeaves) {
+      TreeNode node = queue.poll();
+      node.splitTree();
+      leafCount++;
+      for (TreeNode child : new TreeNode[] {node.leftChild, node.rightChild}) {
+        if (child.searchSplit()) {
+          child.training.queueOrder = queued++;
+          queue.add(child);
+        }
+      }
+    }
+    for (TreeNode node : queue)
+      node.makeLeaf();
+  }
+
+  /**
+   * Find the best split of this node if the stopping rules allow splitting
+   * it, otherwise turn it into a leaf
+   * @return whether the node can be split with the selected feature and
+   * threshold
+   */
+  private boolean searchSplit() {
+    if (label != -1) {
+      training = null;
+      return false;
+    }
+    TreeOptions options = training.context.options;
+    if (training.depth >= options.maxDepth
+        || training.rows.length < options.minSamplesSplit) {
+      makeLeaf();
+      return false;
+    }
+    double gain = findThreshold();
+    training.gain = gain;
+    if (gain == Double.NEGATIVE_INFINITY || gain < options.minGain) {
+      makeLeaf();
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Stop splitting this node and label it with its majority label
+   */
+  private void makeLeaf() {
+    label = majorityLabel();
+    selectedFeature = -1;
+    selectedThreshold = 0;
+    training = null;
+  }
+
+  /**
+   * Grows the subtree below a node as a fork-join task
+   */
+  private static class SubtreeConstruction extends RecursiveAction {
+    private final TreeNode node;
+
+    SubtreeConstruction(TreeNode node) {
+      this.node = node;
+    }
+
+    @Override
+    protected void compute() {
+      node.constructSubtree();
+    }
+  }
+
+  /**
+   * Construct the tree using ID3 from a list of rows
+   * @param dataMatrix training data of this node
+   */
+  public void construct(List<DataRow> dataMatrix) {
+    construct(Dataset.fromRows(dataMatrix));
+  }
+
+  /**
+   * Construct the tree using ID3 from all rows of a data set
+   * @param dataset training data of this node
+   */
+  public void construct(Dataset dataset) {
+    construct(dataset, new TreeOptions());
+  }
+
+  /**
+   * Construct the tree using ID3 from all rows of a data set
+   * @param dataset training data of this node
+   * @param options settings for growing the tree
+   */
+  public void construct(Dataset dataset, TreeOptions options) {
+    if (training == null || training.remainFeatures == null)
+      throw new IllegalStateException(
+          "Only a root that is not grown yet can be constructed from data");
+    setTrainingData(training.remainFeatures, dataset, options,
+        dataset.allRows(), new SplittableRandom());
+    construct();
   }
 
   /**
    * Find the feature that maximizes information gain. For each feature, scan
-   * through all possible threshold to find the largest information gain.
+   * through all possible threshold to find the largest information gain. In
+   * extra trees mode each feature scores a single random threshold instead.
+   * Large nodes search their features in parallel; the best split is the
+   * same as in a sequential search.
    */
   public double findThreshold() {
+    int[] features = training.context.features;
+    int featureCount = features.length;
+
+    int[] totalLabelCount = countLabels();
+    double[] scores = new double[featureCount];
+    double[] thresholds = new double[featureCount];
+
+    TreeOptions options = training.context.options;
+    if (options.splitMode == TreeOptions.SplitMode.EXTRA_TREES) {
+      // Draw the random position of every threshold up front, so the
+      // result does not depend on which thread searches which feature
+      for (int i = 0; i < featureCount; ++i)
+        thresholds[i] = training.random.nextDouble();
+    }
+
+    if (options.parallelism > 1 && featureCount > 1
+        && training.rows.length >= options.parallelSplitCutoff) {
+      FeatureSearch search = new FeatureSearch(features, totalLabelCount,
+          scores, thresholds, 0, featureCount);
+      if (ForkJoinTask.inForkJoinPool())
+        search.invoke();
+      else
+        TreeOptions.pool(options.parallelism).invoke(search);
+    } else {
+      for (int i = 0; i < featureCount; ++i)
+        searchFeature(features, totalLabelCount, scores, thresholds, i);
+    }
+
+    // Reduce in feature order so that ties go to the same feature as in a
+    // sequential scan
     double maxScore = Double.NEGATIVE_INFINITY;
-    int sampleCount = dataMatrix.size();
+    for (int i = 0; i < featureCount; ++i) {
+      if (scores[i] > maxScore) {
+        maxScore = scores[i];
+        selectedFeature = features[i];
+        selectedThreshold = thresholds[i];
+      }
+    }
+    return maxScore;
+  }
+
+  /**
+   * Search the best threshold of features[i], storing its information gain
+   * in scores[i] and the threshold in thresholds[i]
+   */
+  private void searchFeature(int[] features, int[] totalLabelCount,
+                             double[] scores, double[] thresholds, int i) {
+    scores[i] = Double.NEGATIVE_INFINITY;
+    if (training.context.options.splitMode
+        == TreeOptions.SplitMode.EXTRA_TREES)
+      searchRandomFeature(features[i], totalLabelCount, scores, thresholds, i);
+    else if (training.orders != null)
+      searchPresortedFeature(features[i], totalLabelCount, scores, thresholds, i);
+    else if (training.histograms != null)
+      searchHistogramFeature(features[i], totalLabelCount, scores, thresholds,
+          i);
+    else
+      searchSortedFeature(features[i], totalLabelCount, scores, thresholds, i);
+  }
+
+  /**
+   * Sort the values of a feature and scan every threshold between them
+   */
+  private void searchSortedFeature(int feature, int[] totalLabelCount,
+                                   double[] scores, double[] thresholds,
+                                   int i) {
+    TrainingContext context = training.context;
+    int[] rows = training.rows;
+    int sampleCount = rows.length;
+    int minSamplesLeaf = context.options.minSamplesLeaf;
+    Dataset dataset = context.dataset;
+    byte[] labels = dataset.labels;
+    double[] column = dataset.columns[feature];
 
-    int[] totalLabelCount = new int[2];
-    for (DataRow row : dataMatrix)
-      totalLabelCount[row.label]++;
+    // Values of each label are sorted separately and merged during the scan
+    int count0 = totalLabelCount[0];
+    int count1 = totalLabelCount[1];
+    double[] values0 = new double[count0];
+    double[] values1 = new double[count1];
+    int next0 = 0;
+    int next1 = 0;
+    for (int row : rows) {
+      if (labels[row] == 0)
+        values0[next0++] = column[row];
+      else
+        values1[next1++] = column[row];
+    }
+    Arrays.sort(values0);
+    Arrays.sort(values1);
 
-    for (int feature: remainFeatures) {
-      int[] currentLabelCount = new int[2];
+    // Merge the two sorted lists, stopping at every distinct value
+    int below0 = 0;
+    int below1 = 0;
+    double value = Math.min(count0 > 0 ? values0[0] : values1[0],
+        count1 > 0 ? values1[0] : values0[0]);
+    while (true) {
+      while (below0 < count0 && values0[below0] == value)
+        below0++;
+      while (below1 < count1 && values1[below1] == value)
+        below1++;
+      if (below0 + below1 > sampleCount - minSamplesLeaf)
+        break;
 
-      List<FeatureLabelTuple> featureList = new ArrayList<>();
-      // Pre-processing
-      for (DataRow row : dataMatrix) {
-        FeatureLabelTuple tuple =
-            new FeatureLabelTuple(row.features.get(feature), row.label);
-        featureList.add(tuple);
+      // The next distinct value is the first one above the threshold
+      if (below1 == count1
+          || (below0 < count0 && values0[below0] < values1[below1]))
+        value = values0[below0];
+      else
+        value = values1[below1];
+      if (below0 + below1 < minSamplesLeaf)
+        continue;
+
+      double score = informationGain(below0, below1, totalLabelCount);
+      if (score > scores[i]) {
+        scores[i] = score;
+        thresholds[i] = value;
       }
+    }
+  }
 
-      Collections.sort(featureList);
-
-      for (int threshold = 1; threshold < sampleCount; ++threshold) {
-        currentLabelCount[featureList.get(threshold - 1).label]++;
-        if (featureList.get(threshold).feature.equals(
-            featureList.get(threshold - 1).feature))
-          continue;
-        // Calculate information gain
-        double score = 0;
-
-        // Score below threshold
-        double belowScore = 0;
-        for (int i = 0; i < 2; ++i) {
-          double p = ((double) currentLabelCount[i]) / threshold;
-          if (p == 0)
-            belowScore += 0;
-          else
-            belowScore += -p * (Math.log(p) / Math.log(2));
-        }
-        score += belowScore * ((double) threshold) / sampleCount;
-
-        // Score above threshold
-        double aboveScore = 0;
-        for (int i = 0; i < 2; ++i) {
-          double p = ((double) (totalLabelCount[i] - currentLabelCount[i]))
-              / (sampleCount - threshold);
-          if (p == 0)
-            aboveScore += 0;
-          else
-            aboveScore += -p * (Math.log(p) / Math.log(2));
-        }
-        score += aboveScore * ((double) sampleCount - threshold) / sampleCount;
+  /**
+   * Scan every threshold of a feature, reading the rows in the order kept
+   * since the root, so no sorting is needed
+   */
+  private void searchPresortedFeature(int feature, int[] totalLabelCount,
+                                      double[] scores, double[] thresholds,
+                                      int i) {
+    TrainingContext context = training.context;
+    int sampleCount = training.rows.length;
+    int minSamplesLeaf = context.options.minSamplesLeaf;
+    Dataset dataset = context.dataset;
+    byte[] labels = dataset.labels;
+    double[] column = dataset.columns[feature];
+    int[] order = training.orders[feature];
+    int[] currentLabelCount = new int[2];
 
-        score = entropy - score;
-        if (score > maxScore) {
-          maxScore = score;
-          selectedFeature = feature;
-          selectedThreshold = featureList.get(threshold).feature;
-        }
+    double previous = column[order[0]];
+    for (int threshold = 1; threshold <= sampleCount - minSamplesLeaf;
+         ++threshold) {
+      currentLabelCount[labels[order[threshold - 1]]]++;
+      double value = column[order[threshold]];
+      if (value == previous)
+        continue;
+      previous = value;
+      if (threshold < minSamplesLeaf)
+        continue;
+
+      double score = informationGain(currentLabelCount[0],
+          currentLabelCount[1], totalLabelCount);
+      if (score > scores[i]) {
+        scores[i] = score;
+        thresholds[i] = value;
       }
     }
-    return maxScore;
+  }
+
+  /**
+   * Scan the bin edges of a quantized feature, reading the label counts from
+   * the histograms of this node
+   */
+  private void searchHistogramFeature(int feature, int[] totalLabelCount,
+                                      double[] scores, double[] thresholds,
+                                      int i) {
+    int[] histogram = training.histograms[feature];
+    double[] cuts = training.context.bins.cuts[feature];
+    int minSamplesLeaf = training.context.options.minSamplesLeaf;
+    int below0 = 0;
+    int below1 = 0;
+    for (int bin = 0; bin < cuts.length; ++bin) {
+      // Edges after an empty bin give the same split as the edge before it
+      if (histogram[2 * bin] + histogram[2 * bin + 1] == 0)
+        continue;
+      below0 += histogram[2 * bin];
+      below1 += histogram[2 * bin + 1];
+      if (below0 + below1 > training.rows.length - minSamplesLeaf)
+        break;
+      if (below0 + below1 < minSamplesLeaf)
+        continue;
+
+      double score = informationGain(below0, below1, totalLabelCount);
+      if (score > scores[i]) {
+        scores[i] = score;
+        thresholds[i] = cuts[bin];
+      }
+    }
+  }
+
+  /**
+   * Score a single random threshold of a feature, drawn uniformly between its
+   * smallest and largest value in this node. On entry thresholds[i] holds
+   * the uniform draw in [0, 1) that places the threshold.
+   */
+  private void searchRandomFeature(int feature, int[] totalLabelCount,
+                                   double[] scores, double[] thresholds,
+                                   int i) {
+    TrainingContext context = training.context;
+    int[] rows = training.rows;
+    double[] column = context.dataset.columns[feature];
+    byte[] labels = context.dataset.labels;
+
+    double min = Double.POSITIVE_INFINITY;
+    double max = Double.NEGATIVE_INFINITY;
+    for (int row : rows) {
+      double value = column[row];
+      if (value < min)
+        min = value;
+      if (value > max)
+        max = value;
+    }
+    if (min == max)
+      return;
+
+    // Threshold in (min, max], so both sides of the split are non-empty
+    double threshold = min + (1 - thresholds[i]) * (max - min);
+    if (threshold <= min)
+      threshold = max;
+
+    int[] belowLabelCount = new int[2];
+    for (int row : rows)
+      if (column[row] < threshold)
+        belowLabelCount[labels[row]]++;
+    int belowCount = belowLabelCount[0] + belowLabelCount[1];
+    int minSamplesLeaf = context.options.minSamplesLeaf;
+    if (belowCount < minSamplesLeaf
+        || rows.length - belowCount < minSamplesLeaf)
+      return;
+
+    scores[i] = informationGain(belowLabelCount[0], belowLabelCount[1],
+        totalLabelCount);
+    thresholds[i] = threshold;
+  }
+
+  /**
+   * Searches a range of features of this node, splitting the range in half
+   * until a single feature is left
+   */
+  private class FeatureSearch extends RecursiveAction {
+    private final int[] features;
+    private final int[] totalLabelCount;
+    private final double[] scores;
+    private final double[] thresholds;
+    private final int from;
+    private final int to;
+
+    FeatureSearch(int[] features, int[] totalLabelCount, double[] scores,
+                  double[] thresholds, int from, int to) {
+      this.features = features;
+      this.totalLabelCount = totalLabelCount;
+      this.scores = scores;
+      this.thresholds = thresholds;
+      this.from = from;
+      this.to = to;
+    }
+
+    @Override
+    protected void compute() {
+      if (to - from == 1) {
+        searchFeature(features, totalLabelCount, scores, thresholds, from);
+        return;
+      }
+      int middle = (from + to) >>> 1;
+      invokeAll(
+          new FeatureSearch(features, totalLabelCount, scores, thresholds,
+              from, middle),
+          new FeatureSearch(features, totalLabelCount, scores, thresholds,
+              middle, to));
+    }
+  }
+
+  /**
+   * Count the labels of some rows in every bin of every remaining feature
+   * @param rows rows to count
+   * @return histograms indexed by feature and then by 2 * bin + label
+   */
+  private int[][] buildHistograms(int[] rows) {
+    TrainingContext context = training.context;
+    BinnedDataset bins = context.bins;
+    byte[] labels = context.dataset.labels;
+    int[][] result = new int[bins.codes.length][];
+    for (int feature : training.context.features) {
+      byte[] codes = bins.codes[feature];
+      int[] histogram = new int[2 * bins.binCount(feature)];
+      for (int row : rows)
+        histogram[2 * (codes[row] & 0xff) + labels[row]]++;
+      result[feature] = histogram;
+    }
+    return result;
+  }
+
+  /**
+   * Information gain of splitting this node into rows below and above a
+   * threshold
+   * @param below0 number of rows below the threshold labeled 0
+   * @param below1 number of rows below the threshold labeled 1
+   * @param totalLabelCount label counts of all rows in this node
+   * @return information gain of the split
+   */
+  private double informationGain(int below0, int below1,
+                                 int[] totalLabelCount) {
+    int sampleCount = totalLabelCount[0] + totalLabelCount[1];
+    int threshold = below0 + below1;
+    double score = 0;
+
+    // Score below threshold
+    double belowScore = entropy(below0, below1);
+    score += belowScore * ((double) threshold) / sampleCount;
+
+    // Score above threshold
+    double aboveScore = entropy(totalLabelCount[0] - below0,
+        totalLabelCount[1] - below1);
+    score += aboveScore * ((double) sampleCount - threshold) / sampleCount;
+
+    return training.entropy - score;
   }
 
   /**
    * Split the tree with selected feature and threshold
    */
   public void splitTree() {
-    List<DataRow> leftData =
-        this.dataMatrix.stream()
-            .filter(x -> x.features.get(selectedFeature) < selectedThreshold)
-            .collect(Collectors.toList());
+    // Internal nodes keep their majority label in case they are pruned
+    label = majorityLabel();
 
-    List<DataRow> rightData =
-        this.dataMatrix.stream()
-            .filter(x -> x.features.get(selectedFeature) >= selectedThreshold)
-            .collect(Collectors.toList());
+    TrainingContext context = training.context;
+    int[] rows = training.rows;
+    int[][] orders = training.orders;
+    int[][] histograms = training.histograms;
+    double[] column = context.dataset.columns[selectedFeature];
+    double threshold = selectedThreshold;
 
-    Set<Integer> leftRemainFeatures = new HashSet<>(this.remainFeatures);
+    int leftCount = 0;
+    for (int row : rows)
+      if (column[row] < threshold)
+        leftCount++;
 
-    this.leftChild = new TreeNode(leftRemainFeatures, leftData);
-    Set<Integer> rightRemainFeatures = new HashSet<>(this.remainFeatures);
+    int[] leftRows = new int[leftCount];
+    int[] rightRows = new int[rows.length - leftCount];
+    int left = 0;
+    int right = 0;
+    for (int row : rows) {
+      if (column[row] < threshold)
+        leftRows[left++] = row;
+      else
+        rightRows[right++] = row;
+    }
+
+    int[][] leftOrders = null;
+    int[][] rightOrders = null;
+    if (orders != null) {
+      // Stable partition keeps both halves of every order sorted
+      boolean[] goesLeft = context.goesLeft;
+      for (int row : rows)
+        goesLeft[row] = column[row] < threshold;
+      leftOrders = new int[orders.length][];
+      rightOrders = new int[orders.length][];
+      for (int feature : training.context.features) {
+        int[] leftOrder = new int[leftCount];
+        int[] rightOrder = new int[rows.length - leftCount];
+        left = 0;
+        right = 0;
+        for (int row : orders[feature]) {
+          if (goesLeft[row])
+            leftOrder[left++] = row;
+          else
+            rightOrder[right++] = row;
+        }
+        leftOrders[feature] = leftOrder;
+        rightOrders[feature] = rightOrder;
+      }
+    }
 
-    this.rightChild = new TreeNode(rightRemainFeatures, rightData);
+    int[][] leftHistograms = null;
+    int[][] rightHistograms = null;
+    if (histograms != null) {
+      // Count the smaller child only and get the larger one by subtracting
+      // it from the parent, reusing the parent's arrays
+      boolean leftSmaller = leftRows.length <= rightRows.length;
+      int[][] smaller = buildHistograms(leftSmaller ? leftRows : rightRows);
+      for (int feature : training.context.features) {
+        int[] histogram = histograms[feature];
+        int[] subtrahend = smaller[feature];
+        for (int i = 0; i < histogram.length; ++i)
+          histogram[i] -= subtrahend[i];
+      }
+      leftHistograms = leftSmaller ? smaller : histograms;
+      rightHistograms = leftSmaller ? histograms : smaller;
+    }
+
+    SplittableRandom random = training.random;
+    int depth = training.depth;
+    this.leftChild = new TreeNode(context, leftRows, leftOrders,
+        leftHistograms, random.split(), depth + 1);
+    this.rightChild = new TreeNode(context, rightRows, rightOrders,
+        rightHistograms, random.split(), depth + 1);
+    // The children own the training data from now on
+    training = null;
   }
 
   /**
@@ -185,4 +799,81 @@ public class TreeNode {
       return rightChild.test(features);
 
   }
+
+  /**
+   * Estimate the label of a row of a data set using the trained model
+   * @param dataset data set holding the row
+   * @param row row index
+   * @return estimated label
+   */
+  public int test(Dataset dataset, int row) {
+    TreeNode node = this;
+    while (node.leftChild != null) {
+      if (dataset.columns[node.selectedFeature][row] < node.selectedThreshold)
+        node = node.leftChild;
+      else
+        node = node.rightChild;
+    }
+    return node.label;
+  }
+
+  /**
+   * Reduced-error pruning: from the bottom up, replace a subtree by a leaf
+   * with the majority label of its training rows whenever that does not
+   * increase the number of errors on a validation set
+   * @param dataset data set holding the validation rows
+   * @param rows validation rows that reach this node
+   * @return number of validation rows the pruned subtree gets wrong
+   */
+  public int prune(Dataset dataset, int[] rows) {
+    int leafErrors = 0;
+    for (int row : rows)
+      if (dataset.labels[row] != label)
+        leafErrors++;
+    if (leftChild == null)
+      return leafErrors;
+
+    double[] column = dataset.columns[selectedFeature];
+    int leftCount = 0;
+    for (int row : rows)
+      if (column[row] < selectedThreshold)
+        leftCount++;
+    int[] leftRows = new int[leftCount];
+    int[] rightRows = new int[rows.length - leftCount];
+    int left = 0;
+    int right = 0;
+    for (int row : rows) {
+      if (column[row] < selectedThreshold)
+        leftRows[left++] = row;
+      else
+        rightRows[right++] = row;
+    }
+
+    int subtreeErrors =
+        leftChild.prune(dataset, leftRows) + rightChild.prune(dataset, rightRows);
+    // Trees grown before internal nodes kept a label cannot be pruned here
+    if (label == -1 || subtreeErrors < leafErrors)
+      return subtreeErrors;
+
+    leftChild = null;
+    rightChild = null;
+    selectedFeature = -1;
+    selectedThreshold = 0;
+    return leafErrors;
+  }
+
+  /**
+   * Grow a new decision tree
+   * @param selectedSamples selected sample list
+   * @param selectedFeatures selected feature set
+   * @return the grown tree
+   */
+  public static TreeNode grow(List<DataRow> selectedSamples,
+                              Set<Integer> selectedFeatures) {
+    // Grow a decision tree
+    TreeNode root = new TreeNode(selectedFeatures);
+    root.construct(selectedSamples);
+
+    return root;
+  }
 }
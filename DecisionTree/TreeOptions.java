@@ -0,0 +1,78 @@
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Settings that control how a decision tree is grown. The defaults grow the
+ * same tree as the original ID3 implementation.
+ */
+public class TreeOptions implements Serializable {
+  /**
+   * How a node searches for the threshold of each feature
+   */
+  public enum SplitMode {
+    // Sort the values of every feature again at every node
+    EXACT,
+    // Sort every feature once at the root and keep the orders sorted by
+    // partitioning them on every split
+    PRESORTED,
+    // Quantize every feature into at most maxBins quantile bins and only
+    // consider thresholds at bin edges, using per-node label histograms
+    HISTOGRAM,
+    // Extremely randomized trees: score one random threshold between the
+    // smallest and largest value of each feature, with no sorting
+    EXTRA_TREES
+  }
+
+  public SplitMode splitMode = SplitMode.PRESORTED;
+  // Number of bins per feature in histogram mode, at most 256
+  public int maxBins = BinnedDataset.MAX_BINS;
+
+  // Nodes at this depth are not split further
+  public int maxDepth = Integer.MAX_VALUE;
+  // Nodes with fewer rows than this are not split
+  public int minSamplesSplit = 2;
+  // Splits that leave fewer rows than this in a child are not considered
+  public int minSamplesLeaf = 1;
+  // Nodes whose best split gains less information than this are not split
+  public double minGain = Double.NEGATIVE_INFINITY;
+  // Maximum number of leaves. When set, nodes are split best first, in
+  // order of information gain weighted by node size, and in one thread.
+  public int maxLeaves = Integer.MAX_VALUE;
+
+  // Number of threads used to grow a tree and to search the features of a
+  // node. 1 grows the tree sequentially.
+  public int parallelism = Runtime.getRuntime().availableProcessors();
+  // Nodes with fewer rows than this search their features sequentially
+  public int parallelSplitCutoff = 4096;
+  // Nodes with fewer rows than this grow both of their subtrees in the same
+  // thread
+  public int parallelConstructCutoff = 1024;
+
+  private static final Map<Integer, ForkJoinPool> pools = new HashMap<>();
+
+  /**
+   * Check the settings before a tree is grown with them
+   * @throws IllegalArgumentException if a setting is out of range
+   */
+  void validate() {
+    // Split searches rely on every child keeping at least one row
+    if (minSamplesLeaf < 1)
+      throw new IllegalArgumentException("minSamplesLeaf must be at least 1");
+  }
+
+  /**
+   * Get the pool shared by all trees grown with a parallelism level
+   * @param parallelism number of worker threads
+   * @return the pool for that level
+   */
+  static synchronized ForkJoinPool pool(int parallelism) {
+    ForkJoinPool pool = pools.get(parallelism);
+    if (pool == null) {
+      pool = new ForkJoinPool(parallelism);
+      pools.put(parallelism, pool);
+    }
+    return pool;
+  }
+}
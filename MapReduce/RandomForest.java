@@ -1,16 +1,54 @@
-import sun.jvm.hotspot.jdi.ArrayReferenceImpl;
-
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.ThreadLocalRandom;
 
 /**
  * Created by Jianhong Li on 10/11/15.
  */
 public class RandomForest implements Serializable {
-  // public List<DataRow> dataMatrix;
+  /**
+   * How the training rows of each tree are drawn
+   */
+  public enum Sampling {
+    // sampleFraction of the training rows, without replacement
+    SUBSAMPLE,
+    // Every training row a Poisson(1) number of times, which approximates
+    // a bootstrap sample
+    POISSON
+  }
+
   public List<TreeNode> forest;
   public int N;
+  // Number of features of the training rows
+  public int featureCount;
   public List<Double> accuracy;
+  // Out-of-bag accuracy after each tree, measured on the training rows
+  // with every tree voting only on rows outside its sample
+  public List<Double> oobAccuracy = new ArrayList<>();
+  // Settings used to grow every tree
+  public TreeOptions treeOptions = new TreeOptions();
+  // Number of trees grown at the same time
+  public int threadCount = Runtime.getRuntime().availableProcessors();
+  // Seed of the generator all randomness of training is derived from
+  public long seed = new SplittableRandom().nextLong();
+  public Sampling sampling = Sampling.SUBSAMPLE;
+  // Fraction of the training rows each tree is grown from with SUBSAMPLE.
+  // The training rows are the first two thirds of the data, so the default
+  // grows each tree from 4/9 of all rows; 1 grows every tree from all the
+  // training rows, which leaves none out of bag.
+  public double sampleFraction = 2.0 / 3.0;
+  // Whether to prune every tree with reduced-error pruning against a random
+  // half of the training rows outside its sample. Only the other half
+  // counts towards oobAccuracy, which would be biased by the pruning rows.
+  public boolean pruneTrees = false;
+  // Whether to order the trees after training so that those agreeing most
+  // often with the whole forest on the held out rows vote first
+  public boolean orderTrees = false;
+  // Votes by which one label must lead for test to stop before every tree
+  // has voted. 0 stops only once the result can no longer change.
+  public int voteMargin = 0;
 
   public RandomForest(int N) {
     this.N = N;
@@ -18,45 +56,363 @@ public class RandomForest implements Serializable {
     accuracy = new ArrayList<>();
   }
 
+  public RandomForest(int N, long seed) {
+    this(N);
+    this.seed = seed;
+  }
+
   public RandomForest() {
     forest = new ArrayList<>();
     accuracy = new ArrayList<>();
   }
 
   /**
-   * Train the random forest, only work in single node mode
+   * Train the random forest. Trees are grown concurrently, each with its own
+   * generator split off the seed in tree order, so a seed grows the same
+   * forest for any thread count. The first two thirds of the rows are used
+   * for training and the rest are held out to report accuracy; the list
+   * itself is not modified.
    * @param dataMatrix matrix containing training data
    */
   public void train(List<DataRow> dataMatrix) {
-    // this.dataMatrix = dataMatrix;
-    int featureCount = dataMatrix.get(0).features.size();
-    int sampleCount = dataMatrix.size();
-    int selectedSampleCount = (int) Math.ceil(sampleCount * 2.0 / 3.0);
+    train(Dataset.fromRows(dataMatrix));
+  }
+
+  /**
+   * Train the random forest on a data set, such as one read by
+   * Dataset.fromRows, in the same way as train(List)
+   * @param dataset training data, which all trees address by row index
+   */
+  public void train(Dataset dataset) {
+    featureCount = dataset.featureCount;
+    int sampleCount = dataset.rowCount;
     int selectedFeatureCount = (int) Math.ceil(Math.sqrt(featureCount));
+    int selectedSampleCount = (int) Math.ceil(sampleCount * 2.0 / 3.0);
 
     Set<Integer> allFeatures = new HashSet<>();
     for (int i = 0; i < featureCount; ++i)
       allFeatures.add(i);
 
-    // Randomly select samples
-    Collections.shuffle(dataMatrix);
-    List<DataRow> selectedSamples = new ArrayList<>(
-        dataMatrix.subList(0, selectedSampleCount));
+    SplittableRandom random = new SplittableRandom(seed);
+    List<TreeGrowth> growths = new ArrayList<>();
+    for (int i = 0; i < N; ++i)
+      growths.add(new TreeGrowth(dataset, allFeatures, selectedFeatureCount,
+          selectedSampleCount, random.split()));
+
+    // Votes of the forest grown so far, updated with each new tree
+    VoteTally holdoutVotes =
+        new VoteTally(dataset, selectedSampleCount, sampleCount);
+    VoteTally oobVotes = new VoteTally(dataset, 0, selectedSampleCount);
+    SplittableRandom tieRandom = random.split();
+
+    ForkJoinPool pool = new ForkJoinPool(threadCount);
+    try {
+      for (TreeGrowth growth : growths)
+        pool.execute(growth);
+
+      // Collect the trees in order, so statistics match a sequential run
+      for (int i = 0; i < N; ++i) {
+        TreeGrowth growth = growths.get(i);
+        TreeNode root = growth.join();
+        forest.add(root);
+
+        // Record performance statistics
+        holdoutVotes.add(root);
+        oobVotes.addOutOfBag(root, growth.unscoredRows);
+        growth.unscoredRows = null;
+        int correctCount = holdoutVotes.correctCount(tieRandom);
+        accuracy.add(
+            (double) correctCount / (sampleCount - selectedSampleCount));
+        oobAccuracy.add((double) oobVotes.correctCount(tieRandom)
+            / oobVotes.votedCount());
+        System.out.printf("Grow %dth tree, internal correctness: %f%%, " +
+            "out-of-bag correctness: %f%%\n",
+            i, accuracy.get(i) * 100, oobAccuracy.get(i) * 100);
+      }
+    } finally {
+      pool.shutdown();
+    }
+    if (orderTrees)
+      orderByAgreement(dataset, selectedSampleCount, sampleCount);
+  }
+
+  /**
+   * Order the trees by how often they agree with the vote of the whole
+   * forest on some rows, most often first, so that early exit in test
+   * decides most rows after fewer trees
+   * @param dataset data set the rows belong to
+   * @param fromRow first row
+   * @param toRow end of the rows, exclusive
+   */
+  public void orderByAgreement(Dataset dataset, int fromRow, int toRow) {
+    int[][] labels = new int[forest.size()][toRow - fromRow];
+    int[] votes = new int[toRow - fromRow];
+    for (int i = 0; i < forest.size(); ++i)
+      for (int row = fromRow; row < toRow; ++row) {
+        labels[i][row - fromRow] = forest.get(i).test(dataset, row);
+        votes[row - fromRow] += labels[i][row - fromRow];
+      }
+
+    // Rows on which the forest is tied count for no tree
+    Map<TreeNode, Integer> agreement = new HashMap<>();
+    for (int i = 0; i < forest.size(); ++i) {
+      int count = 0;
+      for (int row = 0; row < votes.length; ++row) {
+        int against = forest.size() - votes[row];
+        if (votes[row] != against
+            && labels[i][row] == (votes[row] > against ? 1 : 0))
+          count++;
+      }
+      agreement.put(forest.get(i), count);
+    }
+    forest.sort((a, b) -> Integer.compare(agreement.get(b), agreement.get(a)));
+  }
+
+  /**
+   * Select a subset of the trees by ordered aggregation on validation rows
+   * @param validation rows to measure accuracy on, which should not be
+   *                   rows the trees were grown from
+   * @param maxTrees largest number of trees to keep
+   * @param targetAccuracy accuracy at which to stop adding trees, or 0 to
+   *                       keep the most accurate subset of at most maxTrees
+   * @return a new forest holding the selected trees
+   * @throws IllegalArgumentException if there are no validation rows or
+   *                                  maxTrees is less than 1
+   */
+  public RandomForest reduce(List<DataRow> validation, int maxTrees,
+                             double targetAccuracy) {
+    Dataset dataset = Dataset.fromRows(validation);
+    return reduce(dataset, 0, dataset.rowCount, maxTrees, targetAccuracy);
+  }
+
+  /**
+   * Select a subset of the trees by ordered aggregation. Starting from no
+   * trees, the tree whose vote makes the subset most accurate on some rows
+   * is added, one at a time, until the subset reaches the target accuracy
+   * or holds maxTrees trees. Without a target, the most accurate of the
+   * subsets seen is kept, the smallest on a tie.
+   * @param dataset data set the validation rows belong to
+   * @param fromRow first validation row
+   * @param toRow end of the validation rows, exclusive
+   * @param maxTrees largest number of trees to keep
+   * @param targetAccuracy accuracy at which to stop adding trees, or 0 to
+   *                       keep the most accurate subset of at most maxTrees
+   * @return a new forest holding the selected trees, in the order selected
+   * @throws IllegalArgumentException if there are no validation rows or
+   *                                  maxTrees is less than 1
+   */
+  public RandomForest reduce(Dataset dataset, int fromRow, int toRow,
+                             int maxTrees, double targetAccuracy) {
+    if (fromRow < 0 || toRow > dataset.rowCount || fromRow >= toRow)
+      throw new IllegalArgumentException("Validation rows [" + fromRow + ", "
+          + toRow + ") are empty or outside the data set");
+    if (maxTrees < 1)
+      throw new IllegalArgumentException(
+          "maxTrees must be at least 1, not " + maxTrees);
+    int rowCount = toRow - fromRow;
+    int[][] labels = new int[forest.size()][rowCount];
+    for (int i = 0; i < forest.size(); ++i)
+      for (int row = 0; row < rowCount; ++row)
+        labels[i][row] = forest.get(i).test(dataset, fromRow + row);
+
+    // Votes for label 1 and number of trees of the subset on each row
+    int[] votes = new int[rowCount];
+    boolean[] selected = new boolean[forest.size()];
+    List<TreeNode> order = new ArrayList<>();
+    int bestSize = 0;
+    int bestScore = 0;
+    int lastScore = 0;
+    while (order.size() < Math.min(maxTrees, forest.size())) {
+      int size = order.size() + 1;
+      int candidate = -1;
+      int candidateScore = -1;
+      for (int i = 0; i < forest.size(); ++i) {
+        if (selected[i])
+          continue;
+        // Twice the number of correct rows, counting a tied row as half
+        int score = 0;
+        for (int row = 0; row < rowCount; ++row) {
+          int ones = votes[row] + labels[i][row];
+          int label = dataset.label(fromRow + row);
+          if (2 * ones == size)
+            score++;
+          else if ((2 * ones > size ? 1 : 0) == label)
+            score += 2;
+        }
+        if (score > candidateScore) {
+          candidateScore = score;
+          candidate = i;
+        }
+      }
+      selected[candidate] = true;
+      order.add(forest.get(candidate));
+      for (int row = 0; row < rowCount; ++row)
+        votes[row] += labels[candidate][row];
+      lastScore = candidateScore;
+      if (candidateScore > bestScore) {
+        bestScore = candidateScore;
+        bestSize = size;
+      }
+      if (targetAccuracy > 0 && candidateScore >= 2 * targetAccuracy * rowCount)
+        break;
+    }
+    if (targetAccuracy > 0) {
+      bestSize = order.size();
+      bestScore = lastScore;
+    }
+
+    RandomForest reduced = new RandomForest();
+    reduced.forest.addAll(order.subList(0, bestSize));
+    reduced.N = reduced.forest.size();
+    reduced.featureCount = featureCount;
+    reduced.treeOptions = treeOptions;
+    reduced.seed = seed;
+    reduced.sampling = sampling;
+    reduced.voteMargin = voteMargin;
+    System.out.printf("Reduce forest to %d of %d trees, validation " +
+        "correctness: %f%%\n", reduced.N, forest.size(),
+        (double) bestScore / (2 * rowCount) * 100);
+    return reduced;
+  }
+
+  /**
+   * Grows one tree of the forest from its own generator
+   */
+  private class TreeGrowth extends RecursiveTask<TreeNode> {
+    private final Dataset dataset;
+    private final Set<Integer> allFeatures;
+    private final int selectedFeatureCount;
+    private final int selectedSampleCount;
+    private final SplittableRandom random;
+    // Rows the tree was grown or pruned from, in ascending order, kept until
+    // its out-of-bag votes are counted on the other training rows
+    int[] unscoredRows;
+
+    TreeGrowth(Dataset dataset, Set<Integer> allFeatures,
+               int selectedFeatureCount, int selectedSampleCount,
+               SplittableRandom random) {
+      this.dataset = dataset;
+      this.allFeatures = allFeatures;
+      this.selectedFeatureCount = selectedFeatureCount;
+      this.selectedSampleCount = selectedSampleCount;
+      this.random = random;
+    }
 
-    for (int i = 0; i < N; ++i) {
+    @Override
+    protected TreeNode compute() {
       Set<Integer> selectedFeatures = selectRandomFeatures(allFeatures,
-          selectedFeatureCount);
-      TreeNode root = TreeNode.grow(selectedSamples, selectedFeatures);
-      forest.add(root);
-
-      // Record performance statistics
-      int correctCount = eval(dataMatrix, selectedSampleCount);
-      accuracy.add((double)correctCount / (sampleCount - selectedSampleCount));
-      System.out.printf("Grow %dth tree, internal correctness: %f%%\n",
-          i,  accuracy.get(i) * 100);
+          selectedFeatureCount, random);
+
+      // Randomly select samples
+      int[] selectedSamples = drawSamples(selectedSampleCount, random);
+
+      // Grow a decision tree
+      TreeNode root = new TreeNode(selectedFeatures, dataset, selectedSamples,
+          treeOptions, random.split());
+      root.construct();
+      unscoredRows = selectedSamples;
+      if (pruneTrees) {
+        // Prune on half of the out-of-bag rows and vote out of bag only on
+        // the rest, so the pruning cannot flatter the out-of-bag accuracy
+        int[] outOfBag = outOfBagRows(selectedSamples, selectedSampleCount);
+        int[] pruningRows = new int[outOfBag.length];
+        int count = 0;
+        for (int row : outOfBag)
+          if (random.nextBoolean())
+            pruningRows[count++] = row;
+        pruningRows = Arrays.copyOf(pruningRows, count);
+        root.prune(dataset, pruningRows);
+        unscoredRows = mergeRows(selectedSamples, pruningRows);
+      }
+      return root;
     }
   }
 
+  /**
+   * Draw the sample of one tree from the training rows
+   * @param trainingCount number of training rows, which are the first rows
+   *                      of the data set
+   * @param random generator of the tree
+   * @return indices of the selected rows in ascending order; rows drawn more
+   * than once are repeated
+   * @throws IllegalArgumentException if sampleFraction is not in (0, 1]
+   */
+  public int[] drawSamples(int trainingCount, SplittableRandom random) {
+    if (sampling == Sampling.POISSON) {
+      int[] counts = new int[trainingCount];
+      int total = 0;
+      for (int row = 0; row < trainingCount; ++row) {
+        counts[row] = nextPoisson(random);
+        total += counts[row];
+      }
+      int[] rows = new int[total];
+      int next = 0;
+      for (int row = 0; row < trainingCount; ++row)
+        for (int k = 0; k < counts[row]; ++k)
+          rows[next++] = row;
+      return rows;
+    }
+
+    // Selection sampling: keep each row with the probability of it being
+    // needed to fill the remaining places
+    if (!(sampleFraction > 0 && sampleFraction <= 1))
+      throw new IllegalArgumentException(
+          "sampleFraction must be in (0, 1], not " + sampleFraction);
+    int selectedCount = (int) Math.ceil(trainingCount * sampleFraction);
+    int[] rows = new int[selectedCount];
+    int next = 0;
+    for (int row = 0; row < trainingCount && next < selectedCount; ++row)
+      if (random.nextInt(trainingCount - row) < selectedCount - next)
+        rows[next++] = row;
+    return rows;
+  }
+
+  /**
+   * @param inBagRows rows a tree was grown from, in ascending order
+   * @param trainingCount number of training rows
+   * @return the training rows the tree was not grown from
+   */
+  private static int[] outOfBagRows(int[] inBagRows, int trainingCount) {
+    int[] rows = new int[trainingCount];
+    int count = 0;
+    int next = 0;
+    for (int row = 0; row < trainingCount; ++row) {
+      while (next < inBagRows.length && inBagRows[next] < row)
+        next++;
+      if (next == inBagRows.length || inBagRows[next] != row)
+        rows[count++] = row;
+    }
+    return Arrays.copyOf(rows, count);
+  }
+
+  /**
+   * @param a rows in ascending order
+   * @param b rows in ascending order
+   * @return the rows of both, in ascending order
+   */
+  private static int[] mergeRows(int[] a, int[] b) {
+    int[] rows = new int[a.length + b.length];
+    int i = 0;
+    int j = 0;
+    for (int k = 0; k < rows.length; ++k)
+      rows[k] = j == b.length || (i < a.length && a[i] <= b[j])
+          ? a[i++] : b[j++];
+    return rows;
+  }
+
+  /**
+   * @return a Poisson distributed number with mean 1
+   */
+  private static int nextPoisson(SplittableRandom random) {
+    double limit = Math.exp(-1);
+    double product = random.nextDouble();
+    int count = 0;
+    while (product > limit) {
+      product *= random.nextDouble();
+      count++;
+    }
+    return count;
+  }
 
   /**
    * Select random features from a feature set
@@ -66,14 +422,27 @@ public class RandomForest implements Serializable {
    */
   public static Set<Integer> selectRandomFeatures(Set<Integer> allFeatures,
                                                   int selectedFeatureCount) {
+    return selectRandomFeatures(allFeatures, selectedFeatureCount,
+        new SplittableRandom());
+  }
 
-    // Randomly select features
-    List<Integer> tmpList = new LinkedList<>(allFeatures);
-    Collections.shuffle(tmpList);
+  /**
+   * Select random features from a feature set
+   * @param allFeatures a set containing all features
+   * @param selectedFeatureCount the size of generated subset of features
+   * @param random generator used for the selection
+   * @return a subset of features
+   */
+  public static Set<Integer> selectRandomFeatures(Set<Integer> allFeatures,
+                                                  int selectedFeatureCount,
+                                                  SplittableRandom random) {
+    // Partial Fisher-Yates shuffle of the feature list
+    List<Integer> tmpList = new ArrayList<>(allFeatures);
+    for (int i = 0; i < selectedFeatureCount; ++i)
+      Collections.swap(tmpList, i, i + random.nextInt(tmpList.size() - i));
     return new HashSet<>(tmpList.subList(0, selectedFeatureCount));
   }
 
-
   public int eval(List<DataRow> dataMatrix, int selectedSampleCount) {
     int correctCount = 0;
     int sampleCount = dataMatrix.size();
@@ -91,35 +460,23 @@ public class RandomForest implements Serializable {
    */
   public int test(List<Double> features) {
     int[] voteCount = new int[2];
-    for (TreeNode root : forest)
+    int remaining = forest.size();
+    for (TreeNode root : forest) {
       voteCount[root.test(features)]++;
+      remaining--;
+      // Stop once the trees left cannot change the result, or once the
+      // lead reaches the margin
+      int lead = Math.abs(voteCount[1] - voteCount[0]);
+      if (lead > remaining || (voteMargin > 0 && lead >= voteMargin))
+        break;
+    }
 
     if (voteCount[1] != voteCount[0]) {
       return voteCount[0] > voteCount[1] ? 0 : 1;
     } else {
-      // Break tie by randomly choose a label
-      return Math.random() < 0.5 ? 0 : 1;
-    }
-  }
-
-  public static byte[] serialize(RandomForest randomForest) throws IOException {
-    ByteArrayOutputStream b = new ByteArrayOutputStream();
-    try (ObjectOutputStream o = new ObjectOutputStream(b)) {
-      o.writeObject(randomForest);
-      return b.toByteArray();
-    } finally {
-      b.close();
-    }
-  }
-
-  public static RandomForest deserialize(byte[] bytes) throws
-      IOException, ClassNotFoundException {
-    ByteArrayInputStream b = new ByteArrayInputStream(bytes);
-
-    try (ObjectInputStream o = new ObjectInputStream(b)) {
-      return (RandomForest) o.readObject();
-    } finally {
-      b.close();
+      // Break tie by randomly choose a label, with a generator of this
+      // thread so concurrent callers do not contend on a shared one
+      return ThreadLocalRandom.current().nextBoolean() ? 1 : 0;
     }
   }
 
@@ -0,0 +1,33 @@
+import java.util.Arrays;
+import java.util.Set;
+
+/**
+ * State shared by all nodes of a tree while it is being grown.
+ */
+class TrainingContext {
+  final Dataset dataset;
+  final TreeOptions options;
+  // Features the tree may split on, in ascending order
+  final int[] features;
+  // Scratch flags marking the rows that go to the left child of a split.
+  // Sibling subtrees never share rows, so one array serves the whole tree.
+  final boolean[] goesLeft;
+  // Quantized features, only used in histogram mode
+  final BinnedDataset bins;
+
+  TrainingContext(Dataset dataset, TreeOptions options,
+                  Set<Integer> remainFeatures) {
+    options.validate();
+    this.dataset = dataset;
+    this.options = options;
+    this.features = new int[remainFeatures.size()];
+    int next = 0;
+    for (int feature : remainFeatures)
+      features[next++] = feature;
+    Arrays.sort(features);
+    this.goesLeft = options.splitMode == TreeOptions.SplitMode.PRESORTED
+        ? new boolean[dataset.rowCount] : null;
+    this.bins = options.splitMode == TreeOptions.SplitMode.HISTOGRAM
+        ? dataset.binned(options.maxBins) : null;
+  }
+}
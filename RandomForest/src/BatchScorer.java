@@ -0,0 +1,176 @@
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Scores a text data file of any size into an output file. The input is
+ * memory-mapped and cut into chunks of about CHUNK_BYTES, which threads
+ * parse and score in parallel, while the chunks are written out in input
+ * order. Only a few chunks per thread are held at a time, so memory stays
+ * bounded however large the input is.
+ *
+ * Each output line holds the predicted label of a row and the fraction of
+ * trees voting for label 1.
+ */
+public class BatchScorer {
+  public static final int CHUNK_BYTES = 1 << 22;
+  // Chunks being scored or waiting to be written, per thread
+  public static final int CHUNKS_PER_THREAD = 2;
+
+  private final Predictor predictor;
+  public int threadCount = Runtime.getRuntime().availableProcessors();
+  // Whether the last value of each line is a label rather than a feature.
+  // Labelled files get their accuracy reported.
+  public boolean labeled = true;
+
+  /**
+   * Scored rows of one chunk
+   */
+  private static class ScoredChunk {
+    byte[] output;
+    int rowCount;
+    int correctCount;
+  }
+
+  /**
+   * Parse and score the lines starting in one chunk of the input
+   */
+  private class ChunkScoring extends RecursiveTask<ScoredChunk> {
+    private final FileChannel channel;
+    private final long start;
+    private final long end;
+    private final int featureCount;
+
+    ChunkScoring(FileChannel channel, long start, long end, int featureCount) {
+      this.channel = channel;
+      this.start = start;
+      this.end = end;
+      this.featureCount = featureCount;
+    }
+
+    @Override
+    protected ScoredChunk compute() {
+      try {
+        return score(channel, start, end, featureCount);
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+  }
+
+  /**
+   * @param predictor trained forest to score with
+   */
+  public BatchScorer(Predictor predictor) {
+    this.predictor = predictor;
+  }
+
+  /**
+   * Score every row of a file
+   * @param inputFilename file in the format read by DatasetReader, or
+   *                      without labels if labeled is false
+   * @param outputFilename file to write one line per row to
+   * @return number of rows scored
+   */
+  public long score(String inputFilename, String outputFilename)
+      throws IOException {
+    long startTime = System.nanoTime();
+    long rowCount = 0;
+    long correctCount = 0;
+    try (RandomAccessFile file = new RandomAccessFile(inputFilename, "r");
+         FileChannel channel = file.getChannel();
+         OutputStream out = new FileOutputStream(outputFilename)) {
+      long size = channel.size();
+      long chunkCount = (size + CHUNK_BYTES - 1) / CHUNK_BYTES;
+      int valueCount = DatasetReader.countValues(channel);
+      int featureCount = labeled ? Math.max(0, valueCount - 1) : valueCount;
+      Deque<ChunkScoring> pending = new ArrayDeque<>();
+      ForkJoinPool pool = new ForkJoinPool(threadCount);
+      try {
+        long next = 0;
+        while (next < chunkCount || !pending.isEmpty()) {
+          while (next < chunkCount
+              && pending.size() < threadCount * CHUNKS_PER_THREAD) {
+            ChunkScoring scoring = new ChunkScoring(channel,
+                next * CHUNK_BYTES, Math.min(size, (next + 1) * CHUNK_BYTES),
+                featureCount);
+            pool.execute(scoring);
+            pending.add(scoring);
+            next++;
+          }
+          ScoredChunk chunk;
+          try {
+            chunk = pending.poll().join();
+          } catch (UncheckedIOException e) {
+            throw e.getCause();
+          }
+          out.write(chunk.output);
+          rowCount += chunk.rowCount;
+          correctCount += chunk.correctCount;
+        }
+      } finally {
+        pool.shutdownNow();
+      }
+    }
+
+    double seconds = (System.nanoTime() - startTime) / 1e9;
+    System.out.printf("Scored %d rows in %.2fs, %.0f rows/s\n",
+        rowCount, seconds, rowCount / seconds);
+    if (labeled && rowCount > 0)
+      System.out.printf("Correctness: %f%%\n",
+          (double) correctCount / rowCount * 100);
+    return rowCount;
+  }
+
+  /**
+   * Parse and score the lines starting in [start, end) of the input. The
+   * last of them may run past end.
+   */
+  private ScoredChunk score(FileChannel channel, long start, long end,
+                            int featureCount) throws IOException {
+    DatasetReader.ChunkLines lines =
+        new DatasetReader.ChunkLines(channel, start, end);
+    ScoredChunk chunk = new ScoredChunk();
+    StringBuilder output = new StringBuilder();
+    double[] features = new double[featureCount];
+    int valueCount = labeled ? featureCount + 1 : featureCount;
+    int treeCount = predictor.treeCount();
+    while (lines.next()) {
+      try {
+        int count = lines.parse(features);
+        if (count != valueCount)
+          throw new NumberFormatException(
+              count + " values, expected " + valueCount);
+      } catch (NumberFormatException e) {
+        throw new IOException(
+            "Line at byte " + lines.offset() + ": " + e.getMessage(), e);
+      }
+
+      int votes = predictor.votes(features);
+      int predicted = predictor.label(votes);
+      output.append(predicted).append(' ')
+          .append((double) votes / treeCount).append('\n');
+      chunk.rowCount++;
+      if (labeled && predicted == lines.label)
+        chunk.correctCount++;
+    }
+    chunk.output = output.toString().getBytes(StandardCharsets.US_ASCII);
+    return chunk;
+  }
+
+  /**
+   * Score a data file with a model file written by Main.serialize
+   * @param args model file, input file and output file
+   */
+  public static void main(String[] args) throws IOException {
+    if (args.length != 3) {
+      System.err.println("Usage: BatchScorer <model> <input> <output>");
+      System.exit(1);
+    }
+    new BatchScorer(MappedForest.open(args[0])).score(args[1], args[2]);
+  }
+}
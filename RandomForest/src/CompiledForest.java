@@ -0,0 +1,188 @@
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.util.*;
+import java.util.function.ToIntFunction;
+import javax.tools.*;
+
+/**
+ * A forest compiled into JVM code at runtime. Every tree becomes nested
+ * if/else statements over a double[] argument, with features and
+ * thresholds as constants, so the JIT compiles the walk like hand-written
+ * code. The source is generated and compiled in memory with javax.tools,
+ * which needs a JDK rather than a JRE.
+ */
+public class CompiledForest implements Predictor {
+  // Levels of a tree written into one method. Deeper subtrees are moved to
+  // methods of their own, which keeps every method small enough for the JIT.
+  public static final int METHOD_DEPTH = 6;
+  // Nodes per generated class, which keeps the thresholds of each class
+  // within the limit of its constant pool
+  public static final int CLASS_NODES = 8192;
+
+  private static int compiledCount = 0;
+
+  private final ToIntFunction<double[]> votes;
+  private final int treeCount;
+
+  private CompiledForest(ToIntFunction<double[]> votes, int treeCount) {
+    this.votes = votes;
+    this.treeCount = treeCount;
+  }
+
+  @Override
+  public int treeCount() {
+    return treeCount;
+  }
+
+  @Override
+  public int votes(double[] features) {
+    return votes.applyAsInt(features);
+  }
+
+  /**
+   * Generate, compile and load the code of a forest
+   * @param forest flattened trees of the forest
+   * @return predictor running the compiled trees
+   */
+  public static CompiledForest compile(FlatForest forest) {
+    String className;
+    synchronized (CompiledForest.class) {
+      className = "GeneratedForest" + compiledCount++;
+    }
+    String source = generateSource(forest, className);
+
+    JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+    if (compiler == null)
+      throw new IllegalStateException("No Java compiler, run on a JDK");
+    Map<String, ByteArrayOutputStream> classFiles = new HashMap<>();
+    StringBuilder errors = new StringBuilder();
+    DiagnosticListener<JavaFileObject> listener =
+        diagnostic -> errors.append(diagnostic).append('\n');
+    JavaFileManager fileManager = new ForwardingJavaFileManager<JavaFileManager>(
+        compiler.getStandardFileManager(listener, null, null)) {
+      @Override
+      public JavaFileObject getJavaFileForOutput(
+          Location location, String name, JavaFileObject.Kind kind,
+          FileObject sibling) {
+        ByteArrayOutputStream classFile = new ByteArrayOutputStream();
+        classFiles.put(name, classFile);
+        return new SimpleJavaFileObject(URI.create("mem:///" + name
+            + kind.extension), kind) {
+          @Override
+          public OutputStream openOutputStream() {
+            return classFile;
+          }
+        };
+      }
+    };
+    JavaFileObject sourceFile = new SimpleJavaFileObject(URI.create(
+        "mem:///" + className + ".java"), JavaFileObject.Kind.SOURCE) {
+      @Override
+      public CharSequence getCharContent(boolean ignoreEncodingErrors) {
+        return source;
+      }
+    };
+    if (!compiler.getTask(null, fileManager, listener,
+        Arrays.asList("-g:none", "-nowarn"), null,
+        Collections.singletonList(sourceFile)).call())
+      throw new IllegalStateException("Compiling the forest failed:\n" + errors);
+
+    ClassLoader loader = new ClassLoader(CompiledForest.class.getClassLoader()) {
+      @Override
+      protected Class<?> findClass(String name) throws ClassNotFoundException {
+        ByteArrayOutputStream classFile = classFiles.get(name);
+        if (classFile == null)
+          throw new ClassNotFoundException(name);
+        byte[] bytes = classFile.toByteArray();
+        return defineClass(name, bytes, 0, bytes.length);
+      }
+    };
+    try {
+      @SuppressWarnings("unchecked")
+      ToIntFunction<double[]> votes = (ToIntFunction<double[]>) loader
+          .loadClass(className).getDeclaredConstructor().newInstance();
+      return new CompiledForest(votes, forest.treeCount());
+    } catch (ReflectiveOperationException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * Write the source of a class counting the votes of a forest. Trees are
+   * grouped into nested classes of about CLASS_NODES nodes each.
+   */
+  static String generateSource(FlatForest forest, String className) {
+    StringBuilder source = new StringBuilder();
+    source.append("public class ").append(className)
+        .append(" implements java.util.function.ToIntFunction<double[]> {\n");
+    StringBuilder votes = new StringBuilder();
+    int part = 0;
+    int tree = 0;
+    while (tree < forest.treeCount()) {
+      source.append("  static final class Part").append(part).append(" {\n");
+      source.append("    static int votes(double[] x) {\n      return 0");
+      int firstTree = tree;
+      int nodeCount = 0;
+      while (tree < forest.treeCount()
+          && (tree == firstTree || nodeCount < CLASS_NODES)) {
+        int end = tree + 1 < forest.treeCount()
+            ? forest.roots[tree + 1] : forest.feature.length;
+        nodeCount += end - forest.roots[tree];
+        source.append(" + t").append(tree).append("(x)");
+        tree++;
+      }
+      source.append(";\n    }\n");
+      for (int t = firstTree; t < tree; ++t)
+        writeMethod(forest, source, "t" + t, forest.roots[t]);
+      source.append("  }\n");
+      votes.append(" + Part").append(part).append(".votes(x)");
+      part++;
+    }
+    source.append("  public int applyAsInt(double[] x) {\n    return 0")
+        .append(votes).append(";\n  }\n}\n");
+    return source.toString();
+  }
+
+  /**
+   * Write a method walking the subtree under a node, moving the subtrees
+   * below METHOD_DEPTH levels into methods of their own
+   */
+  private static void writeMethod(FlatForest forest, StringBuilder source,
+                                  String name, int node) {
+    List<Integer> deeper = new ArrayList<>();
+    source.append("    static int ").append(name).append("(double[] x) {\n");
+    writeNode(forest, source, node, 0, deeper);
+    source.append("    }\n");
+    for (int subtree : deeper)
+      writeMethod(forest, source, "n" + subtree, subtree);
+  }
+
+  private static void writeNode(FlatForest forest, StringBuilder source,
+                                int node, int depth, List<Integer> deeper) {
+    char[] indent = new char[6 + 2 * depth];
+    Arrays.fill(indent, ' ');
+    source.append(indent);
+    if (forest.feature[node] < 0) {
+      source.append("return ").append(forest.value[node]).append(";\n");
+    } else if (depth == METHOD_DEPTH) {
+      deeper.add(node);
+      source.append("return n").append(node).append("(x);\n");
+    } else {
+      source.append("if (x[").append(forest.feature[node]).append("] < ")
+          .append(literal(forest.threshold[node])).append(") {\n");
+      writeNode(forest, source, forest.left[node], depth + 1, deeper);
+      source.append(indent).append("} else {\n");
+      writeNode(forest, source, forest.left[node] + 1, depth + 1, deeper);
+      source.append(indent).append("}\n");
+    }
+  }
+
+  private static String literal(double value) {
+    if (Double.isNaN(value))
+      return "Double.NaN";
+    if (Double.isInfinite(value))
+      return value > 0 ? "Double.POSITIVE_INFINITY" : "Double.NEGATIVE_INFINITY";
+    return Double.toString(value);
+  }
+}
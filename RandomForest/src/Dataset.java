@@ -0,0 +1,130 @@
+import java.util.List;
+
+/**
+ * A data set stored column by column: one primitive array per feature and a
+ * byte array of labels. Tree nodes address samples by row index, so training
+ * never copies or boxes feature values.
+ */
+public class Dataset {
+  public final double[][] columns;
+  public final byte[] labels;
+  public final int rowCount;
+  public final int featureCount;
+  private BinnedDataset binned;
+
+  public Dataset(double[][] columns, byte[] labels) {
+    this.columns = columns;
+    this.labels = labels;
+    this.rowCount = labels.length;
+    this.featureCount = columns.length;
+  }
+
+  /**
+   * Build a data set from a list of rows
+   * @param dataMatrix rows read from a file or database
+   * @return column-major copy of the rows
+   */
+  public static Dataset fromRows(List<DataRow> dataMatrix) {
+    int rowCount = dataMatrix.size();
+    int featureCount = rowCount == 0 ? 0 : dataMatrix.get(0).features.size();
+    double[][] columns = new double[featureCount][rowCount];
+    byte[] labels = new byte[rowCount];
+
+    for (int row = 0; row < rowCount; ++row) {
+      DataRow dataRow = dataMatrix.get(row);
+      for (int feature = 0; feature < featureCount; ++feature)
+        columns[feature][row] = dataRow.features.get(feature);
+      labels[row] = (byte) dataRow.label;
+    }
+    return new Dataset(columns, labels);
+  }
+
+  public double get(int row, int feature) {
+    return columns[feature][row];
+  }
+
+  public int label(int row) {
+    return labels[row];
+  }
+
+  /**
+   * Quantize the features of this data set, reusing the result of an earlier
+   * call with the same number of bins
+   * @param maxBins maximum number of bins per feature
+   * @return the quantized data set
+   */
+  public synchronized BinnedDataset binned(int maxBins) {
+    if (binned == null || binned.maxBins != maxBins)
+      binned = new BinnedDataset(this, maxBins);
+    return binned;
+  }
+
+  /**
+   * @return indices of every row, in order
+   */
+  public int[] allRows() {
+    int[] rows = new int[rowCount];
+    for (int i = 0; i < rowCount; ++i)
+      rows[i] = i;
+    return rows;
+  }
+
+  /**
+   * Sort rows by their value of a feature. The sort is stable, so rows with
+   * equal values keep their relative order.
+   * @param feature feature to sort by
+   * @param rows row indices to sort
+   * @return a new array holding the sorted row indices
+   */
+  public int[] sortRows(int feature, int[] rows) {
+    int[] sorted = rows.clone();
+    mergeSort(columns[feature], sorted, rows.clone(), 0, rows.length);
+    return sorted;
+  }
+
+  /**
+   * Sort rows[from, to) by their key, using buffer as scratch space. Both
+   * arrays must hold the same rows on entry.
+   */
+  private static void mergeSort(double[] keys, int[] rows, int[] buffer,
+                                int from, int to) {
+    if (to - from < 16) {
+      // Insertion sort for short runs
+      for (int i = from + 1; i < to; ++i) {
+        int row = rows[i];
+        double key = keys[row];
+        int j = i - 1;
+        while (j >= from && keys[rows[j]] > key) {
+          rows[j + 1] = rows[j];
+          j--;
+        }
+        rows[j + 1] = row;
+      }
+      return;
+    }
+    int middle = (from + to) >>> 1;
+    // Sort both halves into the buffer, then merge them back into rows
+    mergeSort(keys, buffer, rows, from, middle);
+    mergeSort(keys, buffer, rows, middle, to);
+    int i = from;
+    int j = middle;
+    for (int k = from; k < to; ++k) {
+      if (j == to || (i < middle && keys[buffer[i]] <= keys[buffer[j]]))
+        rows[k] = buffer[i++];
+      else
+        rows[k] = buffer[j++];
+    }
+  }
+
+  /**
+   * Copy the features of a row into a new array
+   * @param row row index
+   * @return feature values of the row
+   */
+  public double[] row(int row) {
+    double[] features = new double[featureCount];
+    for (int feature = 0; feature < featureCount; ++feature)
+      features[feature] = columns[feature][row];
+    return features;
+  }
+}
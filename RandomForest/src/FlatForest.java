@@ -0,0 +1,222 @@
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * The trees of a forest compiled into flat arrays for fast prediction. Each
+ * tree is laid out breadth first, so its upper levels sit next to each other
+ * in memory, and the two children of a node are adjacent: the right child
+ * of node i is left[i] + 1. Prediction walks the arrays iteratively and
+ * allocates nothing.
+ */
+public class FlatForest implements Predictor, Serializable {
+  // Rows scored by each tree in turn in batch prediction, small enough that
+  // the rows and the tree stay in cache together
+  public static final int BLOCK_ROWS = 256;
+  // Batches with fewer rows than this are scored in one thread
+  public static final int PARALLEL_CUTOFF = 4096;
+
+  // Feature tested by each node, or -1 for a leaf
+  public final int[] feature;
+  // Rows with a value below the threshold go to the left child
+  public final double[] threshold;
+  // Index of the left child of each node
+  public final int[] left;
+  // Label of each leaf
+  public final byte[] value;
+  // Index of the root of each tree
+  public final int[] roots;
+  // Number of features of the rows the trees were grown from
+  public final int featureCount;
+
+  /**
+   * Flatten trees of rows with as many features as the trees use
+   * @param forest roots of the trees
+   */
+  public FlatForest(List<TreeNode> forest) {
+    this(forest, 0);
+  }
+
+  /**
+   * Flatten trees
+   * @param forest roots of the trees
+   * @param featureCount number of features of the rows the trees were grown
+   *                     from; raised to the highest feature the trees use
+   */
+  public FlatForest(List<TreeNode> forest, int featureCount) {
+    int nodeCount = 0;
+    for (TreeNode root : forest)
+      nodeCount += countNodes(root);
+    feature = new int[nodeCount];
+    threshold = new double[nodeCount];
+    left = new int[nodeCount];
+    value = new byte[nodeCount];
+    roots = new int[forest.size()];
+
+    int next = 0;
+    List<TreeNode> level = new ArrayList<>();
+    for (int tree = 0; tree < roots.length; ++tree) {
+      roots[tree] = next;
+      level.clear();
+      level.add(forest.get(tree));
+      // Nodes of the queue are numbered in the order they are added
+      int end = next + 1;
+      for (int head = 0; head < level.size(); ++head, ++next) {
+        TreeNode node = level.get(head);
+        if (node.leftChild == null) {
+          feature[next] = -1;
+          value[next] = (byte) node.label;
+        } else {
+          feature[next] = node.selectedFeature;
+          threshold[next] = node.selectedThreshold;
+          left[next] = end;
+          end += 2;
+          level.add(node.leftChild);
+          level.add(node.rightChild);
+        }
+      }
+    }
+    for (int f : feature)
+      featureCount = Math.max(featureCount, f + 1);
+    this.featureCount = featureCount;
+  }
+
+  private static int countNodes(TreeNode node) {
+    if (node.leftChild == null)
+      return 1;
+    return 1 + countNodes(node.leftChild) + countNodes(node.rightChild);
+  }
+
+  @Override
+  public int treeCount() {
+    return roots.length;
+  }
+
+  /**
+   * @param tree index of a tree
+   * @param features feature values of a row
+   * @return label the tree predicts for the row
+   */
+  public int predictTree(int tree, double[] features) {
+    int node = roots[tree];
+    while (feature[node] >= 0)
+      node = features[feature[node]] < threshold[node]
+          ? left[node] : left[node] + 1;
+    return value[node];
+  }
+
+  /**
+   * @param features feature values of a row
+   * @return number of trees voting for label 1
+   */
+  @Override
+  public int votes(double[] features) {
+    int votes = 0;
+    for (int tree = 0; tree < roots.length; ++tree)
+      votes += predictTree(tree, features);
+    return votes;
+  }
+
+  @Override
+  public int predict(double[] features) {
+    return predict(features, 0);
+  }
+
+  /**
+   * Predict the label of a row by majority vote, stopping as soon as the
+   * trees left cannot change the result, or as soon as one label leads by
+   * a margin
+   * @param features feature values of a row
+   * @param margin lead at which to stop; 0 stops only once the result is
+   *               decided, so the label is the same as when all trees vote
+   * @return predicted label
+   */
+  public int predict(double[] features, int margin) {
+    int votes = 0;
+    for (int tree = 0; tree < roots.length; ++tree) {
+      votes += predictTree(tree, features);
+      int lead = Math.abs(2 * votes - (tree + 1));
+      if (lead > roots.length - tree - 1 || (margin > 0 && lead >= margin))
+        return 2 * votes > tree + 1 ? 1 : 0;
+    }
+    return label(votes);
+  }
+
+  /**
+   * Count the votes of a batch of rows, using every processor
+   * @param rows feature values of each row
+   * @return number of trees voting for label 1 on each row
+   */
+  public int[] votes(double[][] rows) {
+    return votes(rows, Runtime.getRuntime().availableProcessors());
+  }
+
+  /**
+   * Count the votes of a batch of rows. Rows are scored in blocks, and each
+   * tree is walked over a whole block before the next, so its nodes stay in
+   * cache. Large batches are split across threads.
+   * @param rows feature values of each row
+   * @param parallelism number of threads; 1 scores the batch in this thread
+   * @return number of trees voting for label 1 on each row
+   */
+  public int[] votes(double[][] rows, int parallelism) {
+    int[] votes = new int[rows.length];
+    if (parallelism > 1 && rows.length >= PARALLEL_CUTOFF)
+      TreeOptions.pool(parallelism).invoke(
+          new BatchScoring(rows, votes, 0, rows.length));
+    else
+      countVotes(rows, votes, 0, rows.length);
+    return votes;
+  }
+
+  /**
+   * Predict the labels of a batch of rows by majority vote
+   * @param rows feature values of each row
+   * @return predicted label of each row
+   */
+  public int[] predict(double[][] rows) {
+    int[] labels = votes(rows);
+    for (int row = 0; row < labels.length; ++row)
+      labels[row] = label(labels[row]);
+    return labels;
+  }
+
+  private void countVotes(double[][] rows, int[] votes, int from, int to) {
+    for (int start = from; start < to; start += BLOCK_ROWS) {
+      int end = Math.min(to, start + BLOCK_ROWS);
+      for (int tree = 0; tree < roots.length; ++tree)
+        for (int row = start; row < end; ++row)
+          votes[row] += predictTree(tree, rows[row]);
+    }
+  }
+
+  /**
+   * Counts the votes of a range of rows, halving the range until it is
+   * small enough to score in one thread
+   */
+  private class BatchScoring extends RecursiveAction {
+    private final double[][] rows;
+    private final int[] votes;
+    private final int from;
+    private final int to;
+
+    BatchScoring(double[][] rows, int[] votes, int from, int to) {
+      this.rows = rows;
+      this.votes = votes;
+      this.from = from;
+      this.to = to;
+    }
+
+    @Override
+    protected void compute() {
+      if (to - from < PARALLEL_CUTOFF) {
+        countVotes(rows, votes, from, to);
+        return;
+      }
+      int middle = (from + to) >>> 1;
+      invokeAll(new BatchScoring(rows, votes, from, middle),
+          new BatchScoring(rows, votes, middle, to));
+    }
+  }
+}
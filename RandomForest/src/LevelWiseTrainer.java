@@ -0,0 +1,262 @@
+import java.util.*;
+
+/**
+ * Grows decision trees one level at a time over a memory-mapped data set.
+ * Each level takes one pass over the file that routes every row to its node
+ * and counts the label histograms of the open nodes, so only a node index
+ * per row is kept in memory and the file is read once per level rather than
+ * once per node. When the histograms of a whole level would exceed
+ * histogramBudget, its nodes are counted in batches, with one pass per
+ * batch. Splits are searched at quantile bin edges as in histogram mode,
+ * and with cuts taken from every row the trees match that mode.
+ */
+public class LevelWiseTrainer {
+  // Number of rows read to choose the bin cuts
+  public static final int CUT_SAMPLE_ROWS = 1 << 16;
+
+  public final MappedDataset data;
+  public final TreeOptions options;
+  // Bytes of label histograms a tree may hold at once. Trees grown
+  // concurrently each hold up to this much.
+  public long histogramBudget = 64L << 20;
+  // Sorted cut values of each feature
+  final double[][] cuts;
+
+  /**
+   * A node of the level being grown
+   */
+  private static class OpenNode {
+    final TreeNode node;
+    final SplittableRandom random;
+    final int depth;
+    // Index of the left child in the next level, or -1 if not split. The
+    // right child follows it.
+    int leftIndex = -1;
+
+    OpenNode(SplittableRandom random, int depth) {
+      this.node = new TreeNode();
+      this.random = random;
+      this.depth = depth;
+    }
+  }
+
+  /**
+   * @param data data set to train on
+   * @param options settings of the trees; maxLeaves is not supported, and
+   *                splits are always searched at bin edges
+   */
+  public LevelWiseTrainer(MappedDataset data, TreeOptions options) {
+    if (options.maxLeaves != Integer.MAX_VALUE)
+      throw new IllegalArgumentException(
+          "maxLeaves is not supported in level-wise training");
+    options.validate();
+    this.data = data;
+    this.options = options;
+    this.cuts = data.binCuts(options.maxBins, CUT_SAMPLE_ROWS);
+  }
+
+  /**
+   * Grow a tree from every row of the data set
+   * @param remainFeatures features the tree may split on
+   * @param random generator for breaking ties
+   * @return root of the tree
+   */
+  public TreeNode grow(Set<Integer> remainFeatures, SplittableRandom random) {
+    return grow(remainFeatures, new int[data.rowCount], random);
+  }
+
+  /**
+   * Grow a tree from some rows of the data set
+   * @param remainFeatures features the tree may split on
+   * @param nodeOf 0 for every row to train on and -1 for the others. It is
+   *               overwritten with the node index of each row while growing.
+   * @param random generator for breaking ties
+   * @return root of the tree
+   */
+  public TreeNode grow(Set<Integer> remainFeatures, int[] nodeOf,
+                       SplittableRandom random) {
+    int[] features = new int[remainFeatures.size()];
+    int next = 0;
+    for (int feature : remainFeatures)
+      features[next++] = feature;
+    Arrays.sort(features);
+
+    int batchSize = (int) Math.max(1,
+        Math.min(Integer.MAX_VALUE, histogramBudget / nodeBytes(features)));
+    OpenNode root = new OpenNode(random, 0);
+    OpenNode[] level = {root};
+    OpenNode[] previous = null;
+    while (level.length > 0) {
+      boolean[] splits = new boolean[level.length];
+      for (int from = 0; from < level.length; from += batchSize) {
+        int to = (int) Math.min(level.length, (long) from + batchSize);
+        // Rows are routed to this level on the first pass only
+        countBatch(features, nodeOf, from == 0 ? previous : null, level,
+            from, to, splits);
+      }
+
+      List<OpenNode> nextLevel = new ArrayList<>();
+      for (int i = 0; i < level.length; ++i) {
+        OpenNode open = level[i];
+        if (splits[i]) {
+          open.leftIndex = nextLevel.size();
+          nextLevel.add(new OpenNode(open.random.split(), open.depth + 1));
+          nextLevel.add(new OpenNode(open.random.split(), open.depth + 1));
+          open.node.leftChild = nextLevel.get(open.leftIndex).node;
+          open.node.rightChild = nextLevel.get(open.leftIndex + 1).node;
+        }
+      }
+      previous = level;
+      level = nextLevel.toArray(new OpenNode[0]);
+    }
+    return root.node;
+  }
+
+  /**
+   * Count the histograms of the nodes [from, to) of a level in one pass over
+   * the file and decide their splits
+   * @param previous nodes of the last level, to route every row from its
+   *                 node there to its node in this level first, or null if
+   *                 the rows are routed already
+   * @param splits receives whether each node was split
+   */
+  private void countBatch(int[] features, int[] nodeOf, OpenNode[] previous,
+                          OpenNode[] level, int from, int to,
+                          boolean[] splits) {
+    int[][] labelCounts = new int[to - from][2];
+    int[][][] histograms = new int[to - from][features.length][];
+    for (int i = 0; i < to - from; ++i)
+      for (int f = 0; f < features.length; ++f)
+        histograms[i][f] = new int[2 * (cuts[features[f]].length + 1)];
+
+    for (int row = 0; row < data.rowCount; ++row) {
+      int index = nodeOf[row];
+      if (index < 0)
+        continue;
+      if (previous != null) {
+        // Route the row through the split of its node in the last level
+        OpenNode parent = previous[index];
+        if (parent.leftIndex < 0) {
+          nodeOf[row] = -1;
+          continue;
+        }
+        TreeNode node = parent.node;
+        index = data.get(row, node.selectedFeature) < node.selectedThreshold
+            ? parent.leftIndex : parent.leftIndex + 1;
+        nodeOf[row] = index;
+      }
+      if (index < from || index >= to)
+        continue;
+      int label = data.label(row);
+      labelCounts[index - from][label]++;
+      for (int f = 0; f < features.length; ++f) {
+        double[] featureCuts = cuts[features[f]];
+        int bin = BinnedDataset.bin(featureCuts, data.get(row, features[f]));
+        histograms[index - from][f][2 * bin + label]++;
+      }
+    }
+
+    for (int i = from; i < to; ++i) {
+      splits[i] = split(level[i], features, labelCounts[i - from],
+          histograms[i - from]);
+      histograms[i - from] = null;
+    }
+  }
+
+  /**
+   * @return approximate bytes of the label counts and histograms of a node
+   */
+  private long nodeBytes(int[] features) {
+    // Array headers are counted as 16 bytes and references as 8
+    long bytes = 16 + 8 + 8 + 16 + 8L * features.length;
+    for (int feature : features)
+      bytes += 16 + 8L * (cuts[feature].length + 1);
+    return bytes;
+  }
+
+  /**
+   * Decide the label of a node and whether to split it, with the same rules
+   * and the same use of its generator as TreeNode
+   * @return whether the node was split; its feature and threshold are set
+   */
+  private boolean split(OpenNode open, int[] features, int[] labelCount,
+                        int[][] histograms) {
+    TreeNode node = open.node;
+    int sampleCount = labelCount[0] + labelCount[1];
+
+    // Rows within one bin cannot be told apart
+    boolean flag = true;
+    for (int f = 0; f < features.length && sampleCount > 0 && flag; ++f) {
+      int occupiedBins = 0;
+      for (int bin = 0; 2 * bin < histograms[f].length; ++bin)
+        if (histograms[f][2 * bin] + histograms[f][2 * bin + 1] > 0)
+          occupiedBins++;
+      flag = occupiedBins <= 1;
+    }
+    if (flag) {
+      node.label = majorityLabel(labelCount, open.random);
+      return false;
+    } else if (labelCount[0] == 0 || labelCount[1] == 0) {
+      node.label = labelCount[0] == 0 ? 1 : 0;
+      return false;
+    }
+
+    double gain = Double.NEGATIVE_INFINITY;
+    if (open.depth < options.maxDepth && sampleCount >= options.minSamplesSplit)
+      gain = findThreshold(node, features, labelCount, histograms);
+    node.label = majorityLabel(labelCount, open.random);
+    if (open.depth >= options.maxDepth || sampleCount < options.minSamplesSplit
+        || gain == Double.NEGATIVE_INFINITY || gain < options.minGain) {
+      node.selectedFeature = -1;
+      node.selectedThreshold = 0;
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Find the best bin edge of every feature and keep the best of them
+   * @return information gain of the best split
+   */
+  private double findThreshold(TreeNode node, int[] features,
+                               int[] labelCount, int[][] histograms) {
+    int sampleCount = labelCount[0] + labelCount[1];
+    double entropy = TreeNode.entropy(labelCount[0], labelCount[1]);
+    double bestScore = Double.NEGATIVE_INFINITY;
+    for (int f = 0; f < features.length; ++f) {
+      int[] histogram = histograms[f];
+      double[] featureCuts = cuts[features[f]];
+      int below0 = 0;
+      int below1 = 0;
+      for (int bin = 0; bin < featureCuts.length; ++bin) {
+        // Edges after an empty bin give the same split as the edge before it
+        if (histogram[2 * bin] + histogram[2 * bin + 1] == 0)
+          continue;
+        below0 += histogram[2 * bin];
+        below1 += histogram[2 * bin + 1];
+        int belowCount = below0 + below1;
+        if (belowCount > sampleCount - options.minSamplesLeaf)
+          break;
+        if (belowCount < options.minSamplesLeaf)
+          continue;
+
+        double score = entropy
+            - (TreeNode.entropy(below0, below1) * belowCount / sampleCount
+            + TreeNode.entropy(labelCount[0] - below0, labelCount[1] - below1)
+            * (sampleCount - belowCount) / sampleCount);
+        if (score > bestScore) {
+          bestScore = score;
+          node.selectedFeature = features[f];
+          node.selectedThreshold = featureCuts[bin];
+        }
+      }
+    }
+    return bestScore;
+  }
+
+  private static int majorityLabel(int[] labelCount, SplittableRandom random) {
+    if (labelCount[1] != labelCount[0])
+      return labelCount[0] > labelCount[1] ? 0 : 1;
+    return random.nextDouble() < 0.5 ? 0 : 1;
+  }
+}
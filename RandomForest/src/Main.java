@@ -1,57 +1,34 @@
 import java.io.*;
-import java.util.*;
 
 /**
  * Created by Jianhong Li on 9/28/15.
  */
 public class Main {
-  public static List<DataRow> readFile (String filename)
-      throws IOException {
-    BufferedReader br = new BufferedReader(new FileReader(filename));
-    List<DataRow> dataMatrix = new ArrayList<>();
-
-    try {
-      String line = br.readLine();
-
-      while (line != null) {
-        String[] parts = line.split(" ");
-        List<Double> features = new ArrayList<>();
-        for (int i = 0; i < parts.length - 1; ++i) {
-          features.add(Double.parseDouble(parts[i]));
-        }
-        int label = Integer.parseInt(parts[parts.length - 1]);
-
-        DataRow row = new DataRow(features, label);
-        dataMatrix.add(row);
-        line = br.readLine();
-      }
-    } catch (IOException e) {
-      e.printStackTrace();
-    } finally {
-      br.close();
-    }
-    return dataMatrix;
-  }
-
   public static void validate(RandomForest randomForest, String testingFilename)
       throws IOException {
-    List<DataRow> dataMatrix = readFile(testingFilename);
+    Dataset dataset = DatasetReader.read(testingFilename);
+    double[][] rows = new double[dataset.rowCount][];
+    for (int row = 0; row < dataset.rowCount; ++row)
+      rows[row] = dataset.row(row);
+    int[] labels = randomForest.flatten().predict(rows);
     int correctCount = 0;
-    for (DataRow row: dataMatrix) {
-      if (randomForest.test(row.features) == row.label)
+    for (int row = 0; row < dataset.rowCount; ++row) {
+      if (labels[row] == dataset.label(row))
         correctCount++;
     }
     System.out.printf("Correctness: %f%%\n",
-        (double)correctCount / dataMatrix.size() * 100);
+        (double)correctCount / dataset.rowCount * 100);
   }
 
+  /**
+   * Write the trees of a forest as a model file, which MappedForest.open
+   * maps back for scoring
+   * @param randomForest trained forest
+   * @param filename file to write
+   */
   public static void serialize(RandomForest randomForest, String filename) {
-    ObjectOutputStream objectOutputStream;
     try {
-      objectOutputStream = new ObjectOutputStream(
-          new FileOutputStream(filename));
-      objectOutputStream.writeObject(randomForest);
-      objectOutputStream.close();
+      MappedForest.write(randomForest.flatten(), filename, false);
     } catch (IOException e) {
       e.printStackTrace();
     }
@@ -60,12 +37,12 @@ public class Main {
   public static void main (String[] args) throws IOException {
     // Read data
     String trainingFilename = "training";
-    List<DataRow> dataMatrix = readFile(trainingFilename);
+    Dataset dataset = DatasetReader.read(trainingFilename);
 
     // Construct Decision tree with training data set
     int N = 500;
     RandomForest randomForest = new RandomForest(N);
-    randomForest.train(dataMatrix);
+    randomForest.train(dataset);
 
     // Validate test data
     String testingFilename = "testing";
@@ -73,5 +50,12 @@ public class Main {
 
     String serializeFilename = "randomForest";
     serialize(randomForest, serializeFilename);
+
+    // Keep the trees that do best on the rows held out from training
+    int holdoutStart = (int) Math.ceil(dataset.rowCount * 2.0 / 3.0);
+    RandomForest reducedForest = randomForest.reduce(
+        dataset, holdoutStart, dataset.rowCount, N / 5, 0);
+    validate(reducedForest, testingFilename);
+    serialize(reducedForest, serializeFilename + "Reduced");
   }
 }
@@ -0,0 +1,178 @@
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Scores one row at a time with the trees of a forest split into shards,
+ * one per thread, for the lowest latency on an otherwise idle machine. The
+ * calling thread scores the first shard and dedicated workers, started up
+ * front, score the others. Idle workers spin for a while before parking,
+ * so a row that arrives soon after the last one is picked up without the
+ * cost of waking a thread. Rows are scored one at a time; concurrent
+ * callers wait for each other. A failure while scoring a shard, such as a
+ * row too short for the trees, is thrown to the caller and leaves the
+ * workers running.
+ */
+public class ShardedPredictor implements Predictor, AutoCloseable {
+  // Spins of an idle thread before it parks or yields
+  public static final int SPIN_LIMIT = 1 << 14;
+
+  private final FlatForest forest;
+  // Smallest number of features a row must have for every split
+  private final int featureCount;
+  // Trees of shard s are [shardStart[s], shardStart[s + 1])
+  private final int[] shardStart;
+  private final Worker[] workers;
+  // Row being scored and its sequence number, which workers wait on
+  private volatile double[] features;
+  private volatile long sequence;
+  private final AtomicInteger pending = new AtomicInteger();
+  private volatile boolean closed;
+
+  /**
+   * A thread scoring one shard of every row
+   */
+  private class Worker extends Thread {
+    private final int shard;
+    volatile boolean parked;
+    int votes;
+    // Failure while scoring the last row, if any
+    Throwable failure;
+
+    Worker(int shard) {
+      super("ShardedPredictor-" + shard);
+      this.shard = shard;
+      setDaemon(true);
+    }
+
+    @Override
+    public void run() {
+      long seen = 0;
+      while (true) {
+        int spins = 0;
+        while (sequence == seen && !closed) {
+          if (spins < SPIN_LIMIT) {
+            spins++;
+            Thread.onSpinWait();
+          } else {
+            // Publish the flag before the last check, so a new row either
+            // is seen here or finds the flag set and unparks this thread
+            parked = true;
+            if (sequence == seen && !closed)
+              LockSupport.park(this);
+            parked = false;
+          }
+        }
+        if (closed)
+          return;
+        seen = sequence;
+        failure = null;
+        try {
+          votes = countVotes(shard, features);
+        } catch (Throwable e) {
+          failure = e;
+        } finally {
+          pending.decrementAndGet();
+        }
+      }
+    }
+  }
+
+  /**
+   * Start the workers
+   * @param forest flattened trees of the forest
+   * @param threads number of shards, including the one scored by the
+   *                calling thread
+   */
+  public ShardedPredictor(FlatForest forest, int threads) {
+    this.forest = forest;
+    int featureCount = 0;
+    for (int f : forest.feature)
+      featureCount = Math.max(featureCount, f + 1);
+    this.featureCount = featureCount;
+    int shards = Math.max(1, Math.min(threads, forest.treeCount()));
+    shardStart = new int[shards + 1];
+    for (int s = 0; s <= shards; ++s)
+      shardStart[s] = (int) ((long) s * forest.treeCount() / shards);
+    workers = new Worker[shards - 1];
+    for (int w = 0; w < workers.length; ++w) {
+      workers[w] = new Worker(w + 1);
+      workers[w].start();
+    }
+  }
+
+  /**
+   * Start one worker per processor but one
+   * @param forest flattened trees of the forest
+   */
+  public ShardedPredictor(FlatForest forest) {
+    this(forest, Runtime.getRuntime().availableProcessors());
+  }
+
+  private int countVotes(int shard, double[] features) {
+    int votes = 0;
+    for (int tree = shardStart[shard]; tree < shardStart[shard + 1]; ++tree)
+      votes += forest.predictTree(tree, features);
+    return votes;
+  }
+
+  @Override
+  public int treeCount() {
+    return forest.treeCount();
+  }
+
+  @Override
+  public synchronized int votes(double[] features) {
+    if (closed)
+      throw new IllegalStateException("Predictor is closed");
+    if (features.length < featureCount)
+      throw new IllegalArgumentException("Row has " + features.length
+          + " features, the trees use " + featureCount);
+    if (workers.length == 0)
+      return countVotes(0, features);
+
+    pending.set(workers.length);
+    this.features = features;
+    sequence++;
+    for (Worker worker : workers)
+      if (worker.parked)
+        LockSupport.unpark(worker);
+
+    int votes;
+    try {
+      votes = countVotes(0, features);
+    } finally {
+      // Wait for the workers even on failure, so none is still scoring
+      // this row when the next one is published
+      int spins = 0;
+      while (pending.get() > 0) {
+        if (spins < SPIN_LIMIT) {
+          spins++;
+          Thread.onSpinWait();
+        } else {
+          // Let workers sharing this processor run
+          Thread.yield();
+        }
+      }
+    }
+    for (Worker worker : workers) {
+      if (worker.failure instanceof RuntimeException)
+        throw (RuntimeException) worker.failure;
+      if (worker.failure instanceof Error)
+        throw (Error) worker.failure;
+      if (worker.failure != null)
+        throw new IllegalStateException(worker.failure);
+      votes += worker.votes;
+    }
+    return votes;
+  }
+
+  /**
+   * Stop the workers, after the row being scored if any
+   */
+  @Override
+  public synchronized void close() {
+    closed = true;
+    for (Worker worker : workers)
+      LockSupport.unpark(worker);
+  }
+}
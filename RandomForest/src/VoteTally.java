@@ -0,0 +1,86 @@
+import java.util.SplittableRandom;
+
+/**
+ * Running vote counts of a growing forest over a range of rows of a data set.
+ * Adding a tree costs one traversal per row instead of re-testing the whole
+ * forest.
+ */
+public class VoteTally {
+  private final Dataset dataset;
+  private final int fromRow;
+  // Votes for label 0 and 1 of every row, interleaved
+  private final int[] votes;
+
+  /**
+   * @param dataset data set the rows belong to
+   * @param fromRow first row of the range
+   * @param toRow end of the range, exclusive
+   */
+  public VoteTally(Dataset dataset, int fromRow, int toRow) {
+    this.dataset = dataset;
+    this.fromRow = fromRow;
+    this.votes = new int[2 * (toRow - fromRow)];
+  }
+
+  /**
+   * Add the vote of a tree on every row of the range
+   * @param root root of the tree
+   */
+  public void add(TreeNode root) {
+    for (int i = 0; 2 * i < votes.length; ++i)
+      votes[2 * i + root.test(dataset, fromRow + i)]++;
+  }
+
+  /**
+   * Add the vote of a tree on the rows of the range it was not grown from
+   * @param root root of the tree
+   * @param inBagRows rows the tree was grown from, in ascending order
+   */
+  public void addOutOfBag(TreeNode root, int[] inBagRows) {
+    int next = 0;
+    for (int i = 0; 2 * i < votes.length; ++i) {
+      int row = fromRow + i;
+      while (next < inBagRows.length && inBagRows[next] < row)
+        next++;
+      if (next < inBagRows.length && inBagRows[next] == row)
+        continue;
+      votes[2 * i + root.test(dataset, row)]++;
+    }
+  }
+
+  /**
+   * @return number of rows that received at least one vote
+   */
+  public int votedCount() {
+    int count = 0;
+    for (int i = 0; 2 * i < votes.length; ++i)
+      if (votes[2 * i] + votes[2 * i + 1] > 0)
+        count++;
+    return count;
+  }
+
+  /**
+   * Count the rows whose majority vote matches their label, ignoring rows
+   * without votes
+   * @param random generator for breaking ties
+   * @return number of correctly predicted rows
+   */
+  public int correctCount(SplittableRandom random) {
+    int count = 0;
+    for (int i = 0; 2 * i < votes.length; ++i) {
+      int votes0 = votes[2 * i];
+      int votes1 = votes[2 * i + 1];
+      if (votes0 + votes1 == 0)
+        continue;
+      int label;
+      if (votes0 != votes1)
+        label = votes0 > votes1 ? 0 : 1;
+      else
+        // Break tie by randomly choose a label
+        label = random.nextBoolean() ? 0 : 1;
+      if (label == dataset.labels[fromRow + i])
+        count++;
+    }
+    return count;
+  }
+}